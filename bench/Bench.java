@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Bench - Small microbenchmark harness for the server's hot paths
+ * Each benchmark is warmed up, then timed over several iterations; results
+ * are reported as mean time per operation with the spread across iterations.
+ * Return values are kept in a volatile sink so the JIT cannot drop the work.
+ *
+ * Settings (system properties):
+ *   bench.warmup      warmup time per benchmark in ms (default 1000)
+ *   bench.time        time per measured iteration in ms (default 1000)
+ *   bench.iterations  measured iterations (default 5)
+ *   bench.filter      regex; only benchmarks whose name matches run
+ */
+public class Bench {
+    private static final long WARMUP_MS = Long.getLong("bench.warmup", 1000);
+    private static final long ITERATION_MS = Long.getLong("bench.time", 1000);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final Pattern FILTER = Pattern.compile(System.getProperty("bench.filter", ".*"));
+    
+    static volatile Object sink;
+    
+    /**
+     * One operation under test; its result is consumed by the sink
+     */
+    interface Body {
+        Object run() throws Exception;
+    }
+    
+    static void header(String suite) {
+        System.out.println();
+        System.out.println("== " + suite + " ==");
+        System.out.println(String.format(Locale.ROOT, "%-48s %14s %10s %14s", "BENCHMARK", "NS/OP", "+/-", "OPS/S"));
+    }
+    
+    /**
+     * Time-based run: repeat the body in batches until each iteration's time is used up
+     */
+    static void run(String name, Body body) throws Exception {
+        if (!FILTER.matcher(name).find()) {
+            return;
+        }
+        
+        // Warmup, also finding a batch size that takes about a millisecond
+        int batch = 1;
+        long warmupEnd = System.nanoTime() + WARMUP_MS * 1_000_000L;
+        while (System.nanoTime() < warmupEnd) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                sink = body.run();
+            }
+            if (System.nanoTime() - start < 1_000_000L && batch < (1 << 24)) {
+                batch *= 2;
+            }
+        }
+        
+        List<Double> results = new ArrayList<>();
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long end = start + ITERATION_MS * 1_000_000L;
+            long now;
+            do {
+                for (int i = 0; i < batch; i++) {
+                    sink = body.run();
+                }
+                ops += batch;
+                now = System.nanoTime();
+            } while (now < end);
+            results.add((double) (now - start) / ops);
+        }
+        report(name, results);
+    }
+    
+    /**
+     * Fixed-count run for operations that consume a finite resource (e.g. paste IDs)
+     */
+    static void runFixed(String name, int warmupOps, int opsPerIteration, Body body) throws Exception {
+        if (!FILTER.matcher(name).find()) {
+            return;
+        }
+        
+        for (int i = 0; i < warmupOps; i++) {
+            sink = body.run();
+        }
+        
+        List<Double> results = new ArrayList<>();
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < opsPerIteration; i++) {
+                sink = body.run();
+            }
+            results.add((double) (System.nanoTime() - start) / opsPerIteration);
+        }
+        report(name, results);
+    }
+    
+    private static void report(String name, List<Double> nsPerOp) {
+        double mean = 0;
+        for (double value : nsPerOp) {
+            mean += value;
+        }
+        mean /= nsPerOp.size();
+        
+        double variance = 0;
+        for (double value : nsPerOp) {
+            variance += (value - mean) * (value - mean);
+        }
+        double stdev = nsPerOp.size() > 1 ? Math.sqrt(variance / (nsPerOp.size() - 1)) : 0;
+        
+        System.out.println(String.format(Locale.ROOT, "%-48s %14.1f %10.1f %14.0f",
+            name, mean, stdev, 1_000_000_000.0 / mean));
+    }
+    
+    /**
+     * Printable size label: 10B, 1KB, 10MB
+     */
+    static String size(int bytes) {
+        if (bytes >= 1024 * 1024) return (bytes / (1024 * 1024)) + "MB";
+        if (bytes >= 1024) return (bytes / 1024) + "KB";
+        return bytes + "B";
+    }
+    
+    /**
+     * Mixed text of the given length: mostly ASCII with quotes, escapes and some non-ASCII
+     */
+    static String sampleText(int length) {
+        String pattern = "The quick brown fox \"jumps\" over\tthe lazy dog\\n caf\u00e9 \u2603 {x: 1}\n";
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(pattern, 0, Math.min(pattern.length(), length - sb.length()));
+        }
+        return sb.toString();
+    }
+}
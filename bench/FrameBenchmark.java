@@ -0,0 +1,73 @@
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * FrameBenchmark - WebSocket text frame encoding (server side) and decoding of masked client frames,
+ * plain and with permessage-deflate
+ */
+public class FrameBenchmark {
+    private static final int[] SIZES = { 10, 1024, 64 * 1024, 1024 * 1024 };
+    
+    public static void main(String[] args) throws Exception {
+        Bench.header("frames");
+        
+        for (int size : SIZES) {
+            String message = Bench.sampleText(size);
+            Bench.run("WebSocketServer.textMessage " + Bench.size(size),
+                () -> WebSocketServer.textMessage(message));
+        }
+        
+        // A broadcast compresses once for every client without server context takeover
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate");
+        for (int size : SIZES) {
+            ByteBuffer payload = ByteBuffer.wrap(Bench.sampleText(size).getBytes(StandardCharsets.UTF_8));
+            byte[] frame = PerMessageDeflate.deflateShared(payload.duplicate());
+            byte[] compressed = Arrays.copyOfRange(frame, frame.length - compressedLength(frame), frame.length);
+            System.out.printf("  deflate %s -> %d bytes%n", Bench.size(size), compressed.length);
+            Bench.run("PerMessageDeflate.deflateShared " + Bench.size(size),
+                () -> PerMessageDeflate.deflateShared(payload.duplicate()));
+            Bench.run("PerMessageDeflate.inflate " + Bench.size(size),
+                () -> deflate.inflate(compressed, WebSocketServer.MAX_MESSAGE_SIZE));
+        }
+        
+        for (int size : SIZES) {
+            byte[] frame = maskedFrame(Bench.sampleText(size).getBytes(StandardCharsets.UTF_8));
+            Bench.run("WebSocketServer.readFrame " + Bench.size(size),
+                () -> WebSocketServer.readFrame(new ByteArrayInputStream(frame)));
+        }
+    }
+    
+    /**
+     * Payload length from an unmasked frame header
+     */
+    private static int compressedLength(byte[] frame) {
+        int length = frame[1] & 0x7F;
+        if (length == 126) {
+            return ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+        }
+        if (length == 127) {
+            return (int) ByteBuffer.wrap(frame, 2, 8).getLong();
+        }
+        return length;
+    }
+    
+    /**
+     * A client frame as browsers send it: masked, with the payload length in the header
+     */
+    private static byte[] maskedFrame(byte[] payload) {
+        byte[] unmasked = WebSocketServer.encodeFrame(0x1, payload);
+        int headerLength = unmasked.length - payload.length;
+        byte[] mask = { 0x12, 0x34, 0x56, 0x78 };
+        
+        byte[] frame = new byte[unmasked.length + 4];
+        System.arraycopy(unmasked, 0, frame, 0, headerLength);
+        frame[1] |= (byte) 0x80;
+        System.arraycopy(mask, 0, frame, headerLength, 4);
+        for (int i = 0; i < payload.length; i++) {
+            frame[headerLength + 4 + i] = (byte) (payload[i] ^ mask[i % 4]);
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * HistoryBenchmark - History index load, readById, isDeleted and listing pages
+ * Usage: java HistoryBenchmark <history lines>
+ * Writes a synthetic ../data/history.log of that many lines first, so run it
+ * from a scratch working directory and once per history size.
+ */
+public class HistoryBenchmark {
+    
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int pastes = Math.max(1, Math.min(lines / 10, 99999));
+        writeHistory(lines, pastes);
+        
+        long start = System.nanoTime();
+        StorageHistory.initialize();
+        double loadMs = (System.nanoTime() - start) / 1_000_000.0;
+        
+        String suite = "history (" + lines + " lines, " + pastes + " pastes)";
+        Bench.header(suite);
+        System.out.println(String.format("%-48s %14.1f ms", "StorageHistory index load", loadMs));
+        
+        int[] next = { 0 };
+        Bench.run("StorageHistory.readById " + lines, () -> StorageHistory.readById(id(next[0]++ % pastes + 1)));
+        Bench.run("StorageHistory.isDeleted " + lines, () -> StorageHistory.isDeleted(id(next[0]++ % pastes + 1)));
+        StorageHistory.Filter all = new StorageHistory.Filter();
+        Bench.run("StorageHistory.list first page " + lines, () -> StorageHistory.list(null, 100, all));
+        Bench.run("StorageHistory.list mid page " + lines, () -> StorageHistory.list(id(pastes / 2), 100, all));
+        StorageHistory.Filter deleted = new StorageHistory.Filter();
+        deleted.deleted = true;
+        Bench.run("StorageHistory.list deleted " + lines, () -> StorageHistory.list(null, 100, deleted));
+    }
+    
+    private static String id(int number) {
+        return String.format("%05d", number);
+    }
+    
+    /**
+     * Create, then updates spread round-robin over the pastes; every 50th paste ends deleted
+     */
+    private static void writeHistory(int lines, int pastes) throws Exception {
+        Path dataDir = Paths.get("../data");
+        Files.createDirectories(dataDir);
+        int[] versions = new int[pastes + 1];
+        try (BufferedWriter writer = Files.newBufferedWriter(dataDir.resolve("history.log"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < lines; i++) {
+                int paste = i % pastes + 1;
+                int version = ++versions[paste];
+                boolean last = i + pastes >= lines;
+                String action = version == 1 ? "create" : (last && paste % 50 == 0 ? "delete" : "update");
+                writer.write("{\"id\":\"" + id(paste) + "\",\"timestamp\":\"2025-01-01T00:00:00Z\","
+                    + "\"creator_ip\":\"127.0.0.1\",\"version\":" + version + ",\"action\":\"" + action
+                    + "\",\"deleted\":" + "delete".equals(action) + "}\n");
+            }
+        }
+    }
+}
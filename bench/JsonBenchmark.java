@@ -0,0 +1,91 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JsonBenchmark - JSON encoding, JSON reading and URL decoding from 10 B to 10 MB
+ * Reading is timed for JsonReader and for the LegacyJson code it replaced.
+ */
+public class JsonBenchmark {
+    private static final int[] SIZES = { 10, 1024, 100 * 1024, 10 * 1024 * 1024 };
+    
+    public static void main(String[] args) throws Exception {
+        Bench.header("json");
+        
+        for (int size : SIZES) {
+            String text = Bench.sampleText(size);
+            Bench.run("Utils.toJsonString " + Bench.size(size), () -> Utils.toJsonString(text));
+        }
+        
+        for (int size : SIZES) {
+            // Streamed as a server response would be, with nowhere for the bytes to go
+            String text = Bench.sampleText(size);
+            Bench.run("JsonWriter.value " + Bench.size(size), () -> {
+                try (JsonWriter json = JsonWriter.to(OutputStream.nullOutputStream())) {
+                    json.value(text);
+                }
+                return null;
+            });
+        }
+        
+        for (int size : SIZES) {
+            // Body of a JSON string literal, without the quotes
+            String encoded = Utils.toJsonString(Bench.sampleText(size));
+            String escaped = encoded.substring(1, encoded.length() - 1);
+            Bench.run("Utils.unescapeJson " + Bench.size(size), () -> Utils.unescapeJson(escaped));
+        }
+        
+        for (int size : SIZES) {
+            // A paste file as the store writes it
+            byte[] file = pasteFile(Bench.sampleText(size));
+            Bench.run("LegacyJson.extractTextFromJson " + Bench.size(size),
+                () -> LegacyJson.extractTextFromJson(new String(file, StandardCharsets.UTF_8)));
+            Bench.run("JsonReader paste text " + Bench.size(size), () -> readText(file));
+        }
+        
+        for (int noteSize : new int[] { 0, 1024 }) {
+            HistoryRecord record = new HistoryRecord("00042", "2025-01-01T00:00:00.123456Z", "203.0.113.9", 7,
+                "update", false, noteSize > 0 ? Bench.sampleText(noteSize) : null);
+            byte[] line;
+            try (JsonWriter json = JsonWriter.buffered()) {
+                record.writeJson(json);
+                line = json.toByteArray();
+            }
+            String suffix = noteSize > 0 ? " with 1KB note" : "";
+            Bench.run("LegacyJson.parseJsonLine" + suffix,
+                () -> LegacyJson.parseJsonLine(new String(line, StandardCharsets.UTF_8)));
+            Bench.run("HistoryRecord.parse" + suffix, () -> HistoryRecord.parse(line, 0, line.length));
+        }
+        
+        for (int size : SIZES) {
+            String formEncoded = urlEncode(Bench.sampleText(size));
+            Bench.run("Utils.urlDecode " + Bench.size(size), () -> Utils.urlDecode(formEncoded));
+        }
+    }
+    
+    private static byte[] pasteFile(String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(text.length() + 128);
+        try (JsonWriter json = JsonWriter.to(out)) {
+            json.beginObject().field("id", "00001").field("text", text)
+                .field("timestamp", System.currentTimeMillis()).field("version", 1).endObject();
+        }
+        return out.toByteArray();
+    }
+    
+    private static String readText(byte[] file) throws IOException {
+        JsonReader json = new JsonReader(file);
+        json.beginObject();
+        while (json.hasNext()) {
+            if (json.nextName().equals("text")) {
+                return json.nextString();
+            }
+            json.skipValue();
+        }
+        return "";
+    }
+    
+    private static String urlEncode(String text) throws Exception {
+        return java.net.URLEncoder.encode(text, "UTF-8");
+    }
+}
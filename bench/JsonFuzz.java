@@ -0,0 +1,225 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * JsonFuzz - Randomized checks of JsonWriter and JsonReader against each other
+ * Random strings (control characters, backslashes at the end, supplementary
+ * characters, lone surrogates) must come back unchanged through JsonWriter then
+ * JsonReader, through the paste file store and as history records; corrupted
+ * documents must fail with an IOException and nothing else. The replaced
+ * LegacyJson readers are run on the same input and their misses are counted.
+ * Exits with status 1 on the first failure.
+ *
+ * Settings (system properties):
+ *   fuzz.seed        random seed (default: time based, printed)
+ *   fuzz.iterations  cases per check (default 20000)
+ */
+public class JsonFuzz {
+    private static final int ITERATIONS = Integer.getInteger("fuzz.iterations", 20000);
+    // Bytes a corrupted document gets: JSON syntax and a few that start numbers, escapes and literals
+    private static final String CORRUPTIONS = "{}[]\",:\\0-eutn ";
+    
+    public static void main(String[] args) throws Exception {
+        long seed = Long.getLong("fuzz.seed", System.nanoTime());
+        Random random = new Random(seed);
+        System.out.println();
+        System.out.println("== json fuzz (seed " + seed + ", " + ITERATIONS + " cases per check) ==");
+        
+        int legacyMisses = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            String text = randomString(random, i % 500 == 0 ? 20000 : 40);
+            byte[] json = pasteFile(text);
+            check(text.equals(readText(json)), "text round trip", text);
+            if (!text.equals(LegacyJson.extractTextFromJson(new String(json, StandardCharsets.UTF_8)))) {
+                legacyMisses++;
+            }
+        }
+        report("JsonWriter -> JsonReader paste text", legacyMisses);
+        
+        // Through the real store, which reads and writes data/pastes/.../*.json
+        FilePasteStore store = new FilePasteStore(Paths.get("../data"));
+        store.open();
+        for (int i = 0; i < Math.min(ITERATIONS, 500); i++) {
+            String text = randomString(random, 200);
+            String id = String.format("%05d", i + 1);
+            store.write(id, text);
+            check(text.equals(store.read(id)), "FilePasteStore round trip", text);
+        }
+        report("FilePasteStore write -> read", -1);
+        
+        // Escaped input as other writers produce it: every non-ASCII char as \\u, pairs included
+        for (int i = 0; i < ITERATIONS; i++) {
+            String text = randomString(random, 40);
+            check(text.equals(readText(escapedPasteFile(text))), "\\\\u escaped round trip", text);
+        }
+        report("\\u escaped text, surrogate pairs included", -1);
+        
+        legacyMisses = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            HistoryRecord record = randomRecord(random);
+            byte[] line = historyLine(record);
+            HistoryRecord parsed = HistoryRecord.parse(line, 0, line.length);
+            check(sameRecord(record, parsed), "history record round trip", new String(line, StandardCharsets.UTF_8));
+            java.util.Map<String, Object> legacy = LegacyJson.parseJsonLine(new String(line, StandardCharsets.UTF_8));
+            if (legacy == null || !record.id.equals(legacy.get("id")) || !record.creatorIp.equals(legacy.get("creator_ip"))
+                    || (record.note != null && !record.note.equals(legacy.get("note")))) {
+                legacyMisses++;
+            }
+        }
+        report("HistoryRecord write -> parse", legacyMisses);
+        
+        // Corrupted documents: truncated, a byte changed, a byte inserted
+        int rejected = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] line = historyLine(randomRecord(random));
+            byte[] broken = corrupt(random, line);
+            try {
+                HistoryRecord.parse(broken, 0, broken.length);
+            } catch (IOException e) {
+                rejected++;
+            } catch (RuntimeException | StackOverflowError e) {
+                fail("corrupted line threw " + e, new String(broken, StandardCharsets.UTF_8));
+            }
+        }
+        System.out.println(String.format("%-48s %s", "Corrupted history lines", "ok (" + rejected + " rejected)"));
+        
+        StringBuilder deep = new StringBuilder("{\"a\":");
+        for (int i = 0; i < 100000; i++) {
+            deep.append('[');
+        }
+        try {
+            new JsonReader(deep.toString().getBytes(StandardCharsets.UTF_8)).skipValue();
+            fail("deep nesting accepted", "");
+        } catch (JsonReader.MalformedJsonException e) {
+            System.out.println(String.format("%-48s %s", "100000 levels of nesting", "ok (rejected)"));
+        }
+    }
+    
+    private static String readText(byte[] json) throws IOException {
+        JsonReader reader = new JsonReader(json);
+        reader.beginObject();
+        String text = null;
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("text")) {
+                text = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        reader.endDocument();
+        return text;
+    }
+    
+    private static byte[] pasteFile(String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonWriter json = JsonWriter.to(out)) {
+            json.beginObject().field("id", "00001").field("text", text).field("timestamp", 1L).field("version", 1).endObject();
+        }
+        return out.toByteArray();
+    }
+    
+    private static byte[] escapedPasteFile(String text) {
+        StringBuilder sb = new StringBuilder("{ \"id\" : \"00001\",\n  \"text\" : \"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7E) {
+                sb.append(String.format("\\u%04X", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append("\",\n  \"nested\" : {\"a\": [1, -2.5e3, true, null, \"x\"]}\n}\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] historyLine(HistoryRecord record) throws IOException {
+        try (JsonWriter json = JsonWriter.buffered()) {
+            record.writeJson(json);
+            return json.toByteArray();
+        }
+    }
+    
+    private static HistoryRecord randomRecord(Random random) {
+        return new HistoryRecord(String.format("%05d", random.nextInt(99999) + 1), randomString(random, 30),
+            randomString(random, 20), random.nextInt(Integer.MAX_VALUE), randomString(random, 8),
+            random.nextBoolean(), random.nextBoolean() ? randomString(random, 60) : null);
+    }
+    
+    private static boolean sameRecord(HistoryRecord a, HistoryRecord b) {
+        return a.id.equals(b.id) && a.timestamp.equals(b.timestamp) && a.creatorIp.equals(b.creatorIp)
+            && a.version == b.version && a.action.equals(b.action) && a.deleted == b.deleted
+            && (a.note == null ? b.note == null : a.note.equals(b.note));
+    }
+    
+    private static byte[] corrupt(Random random, byte[] line) {
+        int at = random.nextInt(line.length);
+        switch (random.nextInt(3)) {
+            case 0:
+                return java.util.Arrays.copyOf(line, at);
+            case 1:
+                byte[] changed = line.clone();
+                changed[at] = (byte) CORRUPTIONS.charAt(random.nextInt(CORRUPTIONS.length()));
+                return changed;
+            default:
+                byte[] inserted = new byte[line.length + 1];
+                System.arraycopy(line, 0, inserted, 0, at);
+                inserted[at] = (byte) CORRUPTIONS.charAt(random.nextInt(CORRUPTIONS.length()));
+                System.arraycopy(line, at, inserted, at + 1, line.length - at);
+                return inserted;
+        }
+    }
+    
+    /**
+     * Mostly ASCII with quotes, backslashes (often last) and control characters,
+     * plus Latin, CJK, supplementary characters and the odd lone surrogate
+     */
+    private static String randomString(Random random, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            int kind = random.nextInt(20);
+            if (kind < 10) {
+                sb.append((char) (0x20 + random.nextInt(0x5F)));
+            } else if (kind < 12) {
+                sb.append("\"\\".charAt(random.nextInt(2)));
+            } else if (kind < 13) {
+                sb.append((char) random.nextInt(0x20));
+            } else if (kind < 15) {
+                sb.append((char) (0xA0 + random.nextInt(0x700)));
+            } else if (kind < 17) {
+                sb.append((char) (0x4E00 + random.nextInt(0x5000)));
+            } else if (kind < 19) {
+                sb.appendCodePoint(0x10000 + random.nextInt(0x10000));
+            } else {
+                sb.append((char) (0xD800 + random.nextInt(0x800)));
+            }
+        }
+        if (random.nextInt(4) == 0) {
+            sb.append('\\');
+        }
+        return sb.toString();
+    }
+    
+    private static void check(boolean ok, String what, String input) {
+        if (!ok) {
+            fail(what + " failed", input);
+        }
+    }
+    
+    private static void fail(String what, String input) {
+        System.out.println("FAILED: " + what);
+        System.out.println("  input: " + input.replace("\n", "\\n"));
+        System.exit(1);
+    }
+    
+    private static void report(String name, int legacyMisses) {
+        System.out.println(String.format("%-48s %s", name, "ok"
+            + (legacyMisses >= 0 ? " (legacy reader wrong on " + legacyMisses + " of " + ITERATIONS + ")" : "")));
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * LegacyJson - The JSON readers JsonReader replaced, kept as a baseline
+ * Copied unchanged from StorageHistory.parseJsonLine and the paste store's
+ * extractTextFromJson (logging aside), so the benchmarks and JsonFuzz can
+ * compare against them.
+ */
+public class LegacyJson {
+    
+    static Map<String, Object> parseJsonLine(String line) {
+        try {
+            Map<String, Object> map = new HashMap<>();
+            
+            // Simple JSON parser for our specific format
+            line = line.trim();
+            if (!line.startsWith("{") || !line.endsWith("}")) return null;
+            
+            line = line.substring(1, line.length() - 1); // Remove { }
+            
+            String[] pairs = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)"); // Split on comma not in quotes
+            
+            for (String pair : pairs) {
+                String[] kv = pair.split(":", 2);
+                if (kv.length != 2) continue;
+                
+                String key = kv[0].trim().replaceAll("\"", "");
+                String value = kv[1].trim();
+                
+                if (value.equals("true") || value.equals("false")) {
+                    map.put(key, Boolean.parseBoolean(value));
+                } else if (value.startsWith("\"")) {
+                    map.put(key, value.replaceAll("\"", ""));
+                } else {
+                    try {
+                        map.put(key, Integer.parseInt(value));
+                    } catch (NumberFormatException e) {
+                        map.put(key, value);
+                    }
+                }
+            }
+            
+            return map;
+            
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    static String extractTextFromJson(String json) {
+        // Simple JSON parsing - find "text" field value
+        int textIndex = json.indexOf("\"text\"");
+        if (textIndex == -1) return "";
+        
+        int colonIndex = json.indexOf(":", textIndex);
+        if (colonIndex == -1) return "";
+        
+        // Skip whitespace and quote
+        int startQuote = json.indexOf("\"", colonIndex);
+        if (startQuote == -1) return "";
+        
+        // Find end quote (handle escaped quotes)
+        int endQuote = startQuote + 1;
+        while (endQuote < json.length()) {
+            if (json.charAt(endQuote) == '"' && json.charAt(endQuote - 1) != '\\') {
+                break;
+            }
+            endQuote++;
+        }
+        
+        String text = json.substring(startQuote + 1, endQuote);
+        
+        // Unescape JSON string
+        return Utils.unescapeJson(text);
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * StorageBenchmark - Paste create, read and update through Storage
+ * Run from a scratch working directory: Storage writes to ../data.
+ * Buffered writes are flushed by the storage shutdown hook on exit.
+ */
+public class StorageBenchmark {
+    
+    public static void main(String[] args) throws Exception {
+        Storage.initialize();
+        Bench.header("storage");
+        
+        String small = Bench.sampleText(1024);
+        String large = Bench.sampleText(100 * 1024);
+        
+        // Each create uses up a paste ID, so these run a fixed number of times
+        Bench.runFixed("Storage.createPaste 1KB", 500, 1000, () -> Storage.createPaste(small, "127.0.0.1"));
+        Bench.runFixed("Storage.createPaste 100KB", 200, 500, () -> Storage.createPaste(large, "127.0.0.1"));
+        
+        String smallId = Storage.createPaste(small, "127.0.0.1");
+        String largeId = Storage.createPaste(large, "127.0.0.1");
+        Bench.run("Storage.getPaste 1KB", () -> Storage.getPaste(smallId));
+        Bench.run("Storage.getPaste 100KB", () -> Storage.getPaste(largeId));
+        
+        String[] versions = { small, small + "!" };
+        int[] next = { 0 };
+        Bench.run("Storage.updatePaste 1KB", () -> Storage.updatePaste(smallId, versions[next[0]++ & 1], "127.0.0.1"));
+    }
+}
@@ -9,7 +9,7 @@ DATA_DIR="data"
 HISTORY_FILE="$DATA_DIR/history.log"
 
 # Count existing pastes
-PASTE_COUNT=$(ls -1 $DATA_DIR/*.json 2>/dev/null | wc -l)
+PASTE_COUNT=$(ls -1 $DATA_DIR/*.json $DATA_DIR/pastes/*/*/*.json 2>/dev/null | wc -l)
 
 if [ $PASTE_COUNT -eq 0 ]; then
     echo "No existing pastes found"
@@ -25,13 +25,16 @@ if [ -f "$HISTORY_FILE" ]; then
 fi
 
 # Process each paste file
-for paste_file in $DATA_DIR/*.json; do
+# Flat data/{id}.json files and the sharded data/pastes/XX/YY/{id}.json layout
+for paste_file in $DATA_DIR/*.json $DATA_DIR/pastes/*/*/*.json; do
+    [ -f "$paste_file" ] || continue
+    
     # Extract ID from filename
     filename=$(basename "$paste_file")
     id="${filename%.json}"
     
-    # Skip if not a valid 5-digit ID
-    if [[ ! $id =~ ^[0-9]{5}$ ]]; then
+    # Skip if not a valid paste ID (5 digits, or a longer number past 99999)
+    if [[ ! $id =~ ^([0-9]{5}|[1-9][0-9]{5,11})$ ]]; then
         continue
     fi
     
@@ -0,0 +1,209 @@
+#!/bin/bash
+
+# Executor Load Test - Compares connection handling modes side by side
+# For each SERVER_MODE the server is started on its own port, a batch of idle
+# WebSocket collaborators is opened, and HTTP latency is measured while they
+# stay connected. Reports connections held, server thread count and p50/p99.
+#
+# Usage: ./scripts/load_test_executors.sh [idle_websockets] [http_requests] [concurrency] [modes]
+# Example: ./scripts/load_test_executors.sh 2000 5000 50 "threads virtual nio"
+#
+# Virtual threads need Java 21+; on older runtimes "virtual" falls back to
+# platform threads and the server prints a warning to its log.
+
+IDLE_WEBSOCKETS="${1:-1000}"
+HTTP_REQUESTS="${2:-2000}"
+CONCURRENCY="${3:-32}"
+MODES="${4:-threads virtual nio}"
+BASE_PORT=18080
+
+echo "============================================"
+echo "Executor Load Test"
+echo "============================================"
+echo "Idle WebSockets:  $IDLE_WEBSOCKETS"
+echo "HTTP requests:    $HTTP_REQUESTS (concurrency $CONCURRENCY)"
+echo "Modes:            $MODES"
+echo "Java:             $(java -version 2>&1 | head -1)"
+echo ""
+
+if ! command -v python3 &> /dev/null; then
+    echo "✗ ERROR: python3 is required for the load client"
+    exit 1
+fi
+
+# Each idle WebSocket is a file descriptor on both sides
+ulimit -n $((IDLE_WEBSOCKETS * 2 + 1024)) 2>/dev/null || \
+    echo "⚠ Could not raise open file limit; large runs may fail to connect"
+
+# Navigate to project root directory and compile
+cd "$(dirname "$0")/.."
+echo "Compiling Java source files..."
+BUILD_DIR=$(mktemp -d)
+if ! javac -d "$BUILD_DIR" src/*.java; then
+    echo "✗ ERROR: Compilation failed!"
+    rm -rf "$BUILD_DIR"
+    exit 1
+fi
+mkdir -p data
+echo ""
+
+RESULTS=$(mktemp)
+LOG_DIR=$(mktemp -d)
+SERVER_PID=""
+
+cleanup() {
+    if [ -n "$SERVER_PID" ]; then
+        kill "$SERVER_PID" 2>/dev/null
+        wait "$SERVER_PID" 2>/dev/null
+    fi
+    rm -rf "$BUILD_DIR"
+}
+trap cleanup EXIT
+
+PORT_OFFSET=0
+for MODE in $MODES; do
+    PORT=$((BASE_PORT + PORT_OFFSET))
+    PORT_OFFSET=$((PORT_OFFSET + 1))
+    LOG_FILE="$LOG_DIR/$MODE.log"
+
+    echo "--------------------------------------------"
+    echo "Mode: $MODE (port $PORT)"
+    echo "--------------------------------------------"
+
+    (cd src && PORT=$PORT SERVER_MODE=$MODE exec java -cp "$BUILD_DIR" MainServer) > "$LOG_FILE" 2>&1 &
+    SERVER_PID=$!
+
+    # Wait for the health check to answer
+    READY=0
+    for i in $(seq 1 50); do
+        if curl -s "http://localhost:$PORT/health" > /dev/null 2>&1; then
+            READY=1
+            break
+        fi
+        sleep 0.2
+    done
+    if [ $READY -eq 0 ]; then
+        echo "✗ Server did not start in $MODE mode (see $LOG_FILE)"
+        kill "$SERVER_PID" 2>/dev/null
+        SERVER_PID=""
+        continue
+    fi
+
+    # Create a paste for the collaborators to join
+    PASTE_ID=$(curl -s -i -X POST "http://localhost:$PORT/create" \
+      -H "Content-Type: application/x-www-form-urlencoded" \
+      -d "text=load+test+$MODE" | grep -i "^Location:" | sed 's/.*\/\([0-9]*\).*/\1/' | tr -d '\r\n ')
+    if [ -z "$PASTE_ID" ]; then
+        echo "✗ Could not create test paste in $MODE mode"
+        kill "$SERVER_PID" 2>/dev/null
+        SERVER_PID=""
+        continue
+    fi
+
+    python3 - "$MODE" "$PORT" "$PASTE_ID" "$SERVER_PID" "$IDLE_WEBSOCKETS" "$HTTP_REQUESTS" "$CONCURRENCY" >> "$RESULTS" <<'PYEOF'
+import base64, os, socket, sys, threading, time
+
+mode, port, paste_id, pid = sys.argv[1], int(sys.argv[2]), sys.argv[3], sys.argv[4]
+idle, requests, concurrency = int(sys.argv[5]), int(sys.argv[6]), int(sys.argv[7])
+
+def open_websocket():
+    s = socket.create_connection(("127.0.0.1", port), timeout=10)
+    key = base64.b64encode(os.urandom(16)).decode()
+    s.sendall((f"GET /ws/{paste_id} HTTP/1.1\r\nHost: localhost\r\n"
+               f"Upgrade: websocket\r\nConnection: Upgrade\r\n"
+               f"Sec-WebSocket-Key: {key}\r\nSec-WebSocket-Version: 13\r\n\r\n").encode())
+    head = b""
+    while b"\r\n\r\n" not in head:
+        chunk = s.recv(4096)
+        if not chunk:
+            raise IOError("closed during handshake")
+        head += chunk
+    if not head.startswith(b"HTTP/1.1 101"):
+        raise IOError("handshake rejected")
+    return s
+
+def thread_count():
+    try:
+        return len(os.listdir(f"/proc/{pid}/task"))
+    except OSError:
+        return -1
+
+sockets = []
+for _ in range(idle):
+    try:
+        sockets.append(open_websocket())
+    except (OSError, IOError):
+        break
+
+# Let the server settle and drain the user-count broadcasts
+time.sleep(1)
+threads = thread_count()
+
+latencies = []
+errors = [0]
+lock = threading.Lock()
+counter = [0]
+
+def worker():
+    while True:
+        with lock:
+            if counter[0] >= requests:
+                return
+            counter[0] += 1
+        start = time.perf_counter()
+        try:
+            s = socket.create_connection(("127.0.0.1", port), timeout=10)
+            s.sendall(f"GET /api/{paste_id} HTTP/1.1\r\nHost: localhost\r\n\r\n".encode())
+            response = b""
+            while True:
+                chunk = s.recv(65536)
+                if not chunk:
+                    break
+                response += chunk
+            s.close()
+            if not response.startswith(b"HTTP/1.1 200"):
+                raise IOError("bad status")
+            elapsed = (time.perf_counter() - start) * 1000
+            with lock:
+                latencies.append(elapsed)
+        except (OSError, IOError):
+            with lock:
+                errors[0] += 1
+
+started = time.perf_counter()
+pool = [threading.Thread(target=worker) for _ in range(concurrency)]
+for t in pool:
+    t.start()
+for t in pool:
+    t.join()
+duration = time.perf_counter() - started
+
+for s in sockets:
+    s.close()
+
+latencies.sort()
+def pct(p):
+    if not latencies:
+        return float("nan")
+    return latencies[min(len(latencies) - 1, int(len(latencies) * p))]
+
+rps = len(latencies) / duration if duration > 0 else 0
+print(f"{mode:<10} {len(sockets):>10} {threads:>8} {rps:>10.0f} {pct(0.50):>9.2f} {pct(0.99):>9.2f} {errors[0]:>7}")
+PYEOF
+
+    echo "✓ $MODE mode finished (server log: $LOG_FILE)"
+    kill "$SERVER_PID" 2>/dev/null
+    wait "$SERVER_PID" 2>/dev/null
+    SERVER_PID=""
+done
+
+echo ""
+echo "============================================"
+echo "Results"
+echo "============================================"
+printf "%-10s %10s %8s %10s %9s %9s %7s\n" "MODE" "WEBSOCKETS" "THREADS" "REQ/S" "P50(ms)" "P99(ms)" "ERRORS"
+cat "$RESULTS"
+rm -f "$RESULTS"
+echo ""
+echo "WEBSOCKETS = idle collaborators held open during the HTTP run"
+echo "THREADS    = server threads after connecting them (Linux only, -1 elsewhere)"
@@ -0,0 +1,28 @@
+#!/bin/bash
+
+# Storage Migration - Moves flat data/{id}.json files into data/pastes/XX/YY/
+# The server still reads unmigrated files, so this can run at any convenient
+# time. Stop the server first; re-running it is harmless.
+#
+# Usage: ./scripts/migrate_storage.sh [--dry-run]
+
+echo "============================================"
+echo "Storage Migration - Sharded paste layout"
+echo "============================================"
+echo ""
+
+# Navigate to project root directory and compile
+cd "$(dirname "$0")/.."
+echo "Compiling Java source files..."
+if ! javac src/*.java; then
+    echo "✗ ERROR: Compilation failed!"
+    exit 1
+fi
+
+cd src
+if java MigrateStorage "$@"; then
+    echo "✓ Migration complete"
+else
+    echo "✗ Migration finished with errors"
+    exit 1
+fi
@@ -0,0 +1,63 @@
+#!/bin/bash
+
+# Microbenchmarks - Times the hot paths without starting the server
+# Compiles src/ and bench/ together and runs each suite in its own JVM, from
+# a scratch directory so the benchmarks never touch the real data/ folder.
+#
+# Usage: ./scripts/run_benchmarks.sh [suites]
+# Suites: json frames storage history fuzz
+# Example: ./scripts/run_benchmarks.sh "json frames"
+#
+# Tuning (environment):
+#   HISTORY_SIZES   history line counts to benchmark (default "1000 100000 1000000")
+#   BENCH_OPTS      extra JVM options, e.g. "-Dbench.filter=readById -Dbench.iterations=10"
+
+SUITES="${1:-json frames storage history fuzz}"
+HISTORY_SIZES="${HISTORY_SIZES:-1000 100000 1000000}"
+
+echo "============================================"
+echo "Microbenchmarks"
+echo "============================================"
+echo "Suites: $SUITES"
+echo "Java:   $(java -version 2>&1 | head -1)"
+echo ""
+
+# Navigate to project root directory and compile
+cd "$(dirname "$0")/.."
+WORK_DIR=$(mktemp -d)
+trap 'rm -rf "$WORK_DIR"' EXIT
+
+echo "Compiling Java source files..."
+mkdir -p "$WORK_DIR/classes"
+if ! javac -d "$WORK_DIR/classes" src/*.java bench/*.java; then
+    echo "✗ ERROR: Compilation failed!"
+    exit 1
+fi
+
+# Fresh scratch tree: the code reads and writes ../data relative to its working directory
+run_suite() {
+    rm -rf "$WORK_DIR/run" "$WORK_DIR/data"
+    mkdir -p "$WORK_DIR/run" "$WORK_DIR/data"
+    (cd "$WORK_DIR/run" && java $BENCH_OPTS -cp "$WORK_DIR/classes" "$@") | grep -v -e "^\[INFO\]" -e "^\[DEBUG\]"
+    return "${PIPESTATUS[0]}"
+}
+
+for SUITE in $SUITES; do
+    case "$SUITE" in
+        json)    run_suite JsonBenchmark ;;
+        frames)  run_suite FrameBenchmark ;;
+        storage) run_suite StorageBenchmark ;;
+        fuzz)    run_suite JsonFuzz || exit 1 ;;
+        history)
+            for LINES in $HISTORY_SIZES; do
+                run_suite HistoryBenchmark "$LINES"
+            done
+            ;;
+        *)
+            echo "✗ Unknown suite: $SUITE"
+            ;;
+    esac
+done
+
+echo ""
+echo "NS/OP = mean time per operation across iterations, +/- = standard deviation"
@@ -67,6 +67,38 @@ else
     TEST_FAILED=$((TEST_FAILED + 1))
 fi
 
+echo ""
+
+# Test 3: a chunked body must not be read as the next request (request smuggling)
+echo "Test 3: Transfer-Encoding is refused and closes the connection"
+echo "--------------------------------------------"
+
+# Send one raw request and print the status line of every response on the connection
+raw_statuses() {
+    local host port
+    host=$(echo "$SERVER_URL" | sed 's|http://||; s|:.*||')
+    port=$(echo "$SERVER_URL" | sed 's|.*:||')
+    exec 3<>"/dev/tcp/$host/$port" || return
+    printf "$1" >&3
+    # A response pipelined behind a body without a newline still counts
+    timeout 5 cat <&3 | grep -ao "HTTP/1\.[01] [0-9][0-9][0-9] [A-Za-z ]*"
+    exec 3<&-
+}
+
+SMUGGLED="GET /api/history HTTP/1.1\r\nHost: localhost\r\n\r\n"
+CHUNKED=$(raw_statuses "POST /create HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n$SMUGGLED")
+BOTH=$(raw_statuses "POST /create HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\nContent-Length: 4\r\n\r\n0\r\n\r\n$SMUGGLED")
+echo "Chunked only: $(echo $CHUNKED)"
+echo "Chunked and Content-Length: $(echo $BOTH)"
+
+if [ "$CHUNKED" = "HTTP/1.1 501 Not Implemented" ] && [ "$BOTH" = "HTTP/1.1 400 Bad Request" ]; then
+    echo "✓ PASSED: Refused, and the smuggled request was never answered"
+    TEST_PASSED=$((TEST_PASSED + 1))
+else
+    echo "✗ FAILED: Expected a single 501 and a single 400 response"
+    TEST_FAILED=$((TEST_FAILED + 1))
+fi
+
 echo ""
 echo "============================================"
 echo "Smoke Test Summary"
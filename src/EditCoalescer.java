@@ -0,0 +1,119 @@
+import java.util.concurrent.*;
+
+/**
+ * EditCoalescer - Batches bursts of live edits into a single persisted version
+ * Each edited paste waits until it has been quiet for the quiet period, or until
+ * the maximum delay since its first unsaved edit has passed, and then runs the
+ * most recent persist action once. Typing "hello" becomes one version, not five.
+ */
+public class EditCoalescer {
+    
+    private static final class Pending {
+        final long firstEdit;
+        volatile long lastEdit;
+        volatile Runnable persist;
+        
+        Pending(long now, Runnable persist) {
+            this.firstEdit = now;
+            this.lastEdit = now;
+            this.persist = persist;
+        }
+    }
+    
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final long quietMs;
+    private final long maxDelayMs;
+    
+    public EditCoalescer(long quietMs, long maxDelayMs) {
+        this.quietMs = quietMs;
+        this.maxDelayMs = Math.max(quietMs, maxDelayMs);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "edit-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Record an edit; persist replaces the action of any earlier edit still waiting
+     */
+    public void edited(String id, Runnable persist) {
+        long now = System.currentTimeMillis();
+        boolean[] created = new boolean[1];
+        pending.compute(id, (k, entry) -> {
+            if (entry == null) {
+                created[0] = true;
+                return new Pending(now, persist);
+            }
+            entry.lastEdit = now;
+            entry.persist = persist;
+            return entry;
+        });
+        if (created[0]) {
+            schedule(id, quietMs);
+        }
+    }
+    
+    private void schedule(String id, long delayMs) {
+        try {
+            timer.schedule(() -> check(id), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down: close() persists whatever is left
+        }
+    }
+    
+    /**
+     * Timer callback: persist if due, otherwise look again when it will be
+     */
+    private void check(String id) {
+        Pending entry = pending.get(id);
+        if (entry == null) {
+            return;
+        }
+        long due = Math.min(entry.lastEdit + quietMs, entry.firstEdit + maxDelayMs);
+        long now = System.currentTimeMillis();
+        if (now < due) {
+            schedule(id, due - now);
+            return;
+        }
+        if (pending.remove(id, entry)) {
+            run(id, entry);
+        }
+    }
+    
+    /**
+     * Persist a paste's waiting edits now (e.g. when its last editor leaves)
+     */
+    public void flush(String id) {
+        Pending entry = pending.remove(id);
+        if (entry != null) {
+            run(id, entry);
+        }
+    }
+    
+    /**
+     * Forget waiting edits that were made durable some other way
+     */
+    public void cancel(String id) {
+        pending.remove(id);
+    }
+    
+    private void run(String id, Pending entry) {
+        try {
+            entry.persist.run();
+        } catch (RuntimeException e) {
+            ServerLogger.logError("Failed to persist edits for " + id, e);
+        }
+    }
+    
+    /**
+     * Stop the timer and persist every paste with waiting edits
+     */
+    public void close() {
+        timer.shutdownNow();
+        for (String id : pending.keySet()) {
+            flush(id);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * FilePasteStore - One JSON file per paste
+ * Pastes live in data/pastes/<last 2 digits>/<previous 2 digits>/<id>.json;
+ * pastes saved before sharding are still read from the flat data/{id}.json.
+ */
+public class FilePasteStore implements PasteStore {
+    private final Path dataDir;
+    private final Path pastesDir;
+    
+    public FilePasteStore(Path dataDir) {
+        this.dataDir = dataDir;
+        this.pastesDir = dataDir.resolve("pastes");
+    }
+    
+    @Override
+    public void open() throws IOException {
+        Files.createDirectories(pastesDir);
+    }
+    
+    @Override
+    public String read(String id) throws IOException {
+        Path filePath = findPasteFile(id);
+        if (filePath == null) {
+            return null;
+        }
+        return extractText(Files.readAllBytes(filePath));
+    }
+    
+    @Override
+    public void write(String id, String text) throws IOException {
+        Path filePath = getSafeFilePath(id);
+        Files.createDirectories(filePath.getParent());
+        
+        // Atomic write: stream the JSON to a temp file then rename
+        Path tempPath = Paths.get(filePath + ".tmp");
+        try (JsonWriter json = JsonWriter.to(Files.newOutputStream(tempPath))) {
+            json.beginObject()
+                .field("id", id)
+                .field("text", text)
+                .field("timestamp", System.currentTimeMillis())
+                .field("version", 1)
+                .endObject();
+        }
+        
+        // Atomic rename - prevents partial/corrupted files
+        Files.move(tempPath, filePath,
+                  StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+        
+        // The sharded copy supersedes any unmigrated flat file
+        Files.deleteIfExists(getLegacyFilePath(id));
+    }
+    
+    @Override
+    public boolean exists(String id) {
+        return findPasteFile(id) != null;
+    }
+    
+    @Override
+    public void close() {
+        // Every write is already a complete file
+    }
+    
+    /**
+     * Get safe file path - always data/pastes/{last 2}/{previous 2}/{id}.json
+     * Never accepts user-supplied paths
+     */
+    Path getSafeFilePath(String id) {
+        // Paranoid: double-check ID is valid
+        if (!Storage.isValidId(id)) {
+            throw new IllegalArgumentException("Invalid ID: " + id);
+        }
+        int length = id.length();
+        return pastesDir.resolve(id.substring(length - 2)).resolve(id.substring(length - 4, length - 2)).resolve(id + ".json");
+    }
+    
+    /**
+     * Flat data/{id}.json path used before pastes were sharded
+     */
+    Path getLegacyFilePath(String id) {
+        if (!Storage.isValidId(id)) {
+            throw new IllegalArgumentException("Invalid ID: " + id);
+        }
+        return dataDir.resolve(id + ".json");
+    }
+    
+    /**
+     * Existing file for a paste in either layout, or null
+     */
+    private Path findPasteFile(String id) {
+        Path sharded = getSafeFilePath(id);
+        if (Files.exists(sharded)) {
+            return sharded;
+        }
+        Path legacy = getLegacyFilePath(id);
+        return Files.exists(legacy) ? legacy : null;
+    }
+    
+    /**
+     * The "text" member of a paste file, decoded straight from its bytes; "" if it has none
+     */
+    private static String extractText(byte[] data) throws IOException {
+        JsonReader json = new JsonReader(data);
+        json.beginObject();
+        while (json.hasNext()) {
+            if (json.nextName().equals("text")) {
+                String text = json.nextString();
+                return text != null ? text : "";
+            }
+            json.skipValue();
+        }
+        return "";
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * HistoryRecord - One line of the history log
+ * The same fields, in the same order, make up the log line and the entries of
+ * the history API, so both are written by writeJson.
+ */
+public final class HistoryRecord {
+    public final String id;
+    public final String timestamp;
+    public final String creatorIp;
+    public final int version;
+    public final String action;
+    public final boolean deleted;
+    public final String note; // null when the entry has none
+    
+    public HistoryRecord(String id, String timestamp, String creatorIp, int version, String action,
+                         boolean deleted, String note) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.creatorIp = creatorIp;
+        this.version = version;
+        this.action = action;
+        this.deleted = deleted;
+        this.note = note;
+    }
+    
+    /**
+     * Parse one log line; unknown fields are skipped
+     * @throws JsonReader.MalformedJsonException if it is not a JSON object with an id
+     */
+    public static HistoryRecord parse(byte[] data, int offset, int length) throws IOException {
+        JsonReader json = new JsonReader(data, offset, length);
+        String id = null;
+        String timestamp = null;
+        String creatorIp = null;
+        int version = 0;
+        String action = null;
+        boolean deleted = false;
+        String note = null;
+        
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "id": id = json.nextString(); break;
+                case "timestamp": timestamp = json.nextString(); break;
+                case "creator_ip": creatorIp = json.nextString(); break;
+                case "version": version = json.nextInt(); break;
+                case "action": action = json.nextString(); break;
+                case "deleted": deleted = json.nextBoolean(); break;
+                case "note": note = json.nextString(); break;
+                default: json.skipValue();
+            }
+        }
+        json.endObject();
+        json.endDocument();
+        
+        if (id == null) {
+            throw new JsonReader.MalformedJsonException("History line without an id");
+        }
+        return new HistoryRecord(id, timestamp, creatorIp, version, action, deleted, note);
+    }
+    
+    public void writeJson(JsonWriter json) throws IOException {
+        json.beginObject()
+            .field("id", id)
+            .field("timestamp", timestamp)
+            .field("creator_ip", creatorIp)
+            .field("version", version)
+            .field("action", action)
+            .field("deleted", deleted);
+        if (note != null) {
+            json.field("note", note);
+        }
+        json.endObject();
+    }
+    
+    /**
+     * This record with another deleted status
+     */
+    public HistoryRecord withDeleted(boolean deleted) {
+        return deleted == this.deleted ? this
+            : new HistoryRecord(id, timestamp, creatorIp, version, action, deleted, note);
+    }
+    
+    /**
+     * The timestamp in epoch milliseconds, or 0 if it is missing or not an ISO-8601 instant
+     */
+    public long timeMillis() {
+        if (timestamp == null) {
+            return 0;
+        }
+        try {
+            return Instant.parse(timestamp).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+}
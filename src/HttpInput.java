@@ -0,0 +1,141 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HttpInput - Buffered byte input for one HTTP/1.1 connection
+ * Request heads are parsed straight from the byte buffer: a line ends at LF,
+ * an optional CR before it is dropped, and its bytes are taken as ISO-8859-1,
+ * which is what header bytes are. Bodies and WebSocket frames are read as raw
+ * bytes from the same buffer, so nothing the head parser read ahead is lost and
+ * Content-Length is counted in bytes, as the protocol defines it.
+ */
+public class HttpInput extends InputStream {
+    private static final int BUFFER_SIZE = 8192;
+    
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    
+    /**
+     * A request head over the size limits: a line longer than the caller allows, or too many lines
+     */
+    static final class HeadTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        HeadTooLargeException(String message) {
+            super(message);
+        }
+    }
+    
+    public HttpInput(InputStream in) {
+        this.in = in;
+    }
+    
+    /**
+     * Next line without its line ending, or null at end of stream.
+     * Only a line that spans buffer refills is copied before it is decoded.
+     */
+    public String readLine(int maxLength) throws IOException {
+        byte[] spill = null;
+        int spillLength = 0;
+        while (true) {
+            if (pos == limit && !fill()) {
+                return spillLength == 0 ? null : line(spill, spillLength, buffer, pos, pos);
+            }
+            for (int i = pos; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int start = pos;
+                    pos = i + 1;
+                    if (spillLength + i - start > maxLength) {
+                        throw new HeadTooLargeException("Line longer than " + maxLength + " bytes");
+                    }
+                    return line(spill, spillLength, buffer, start, i);
+                }
+            }
+            // No line end in the buffer yet: keep what there is and read on
+            int available = limit - pos;
+            if (spillLength + available > maxLength) {
+                throw new HeadTooLargeException("Line longer than " + maxLength + " bytes");
+            }
+            if (spill == null) {
+                spill = new byte[Math.max(2 * BUFFER_SIZE, available)];
+            } else if (spillLength + available > spill.length) {
+                byte[] grown = new byte[Math.max(2 * spill.length, spillLength + available)];
+                System.arraycopy(spill, 0, grown, 0, spillLength);
+                spill = grown;
+            }
+            System.arraycopy(buffer, pos, spill, spillLength, available);
+            spillLength += available;
+            pos = limit;
+        }
+    }
+    
+    private static String line(byte[] spill, int spillLength, byte[] tail, int start, int end) {
+        if (spillLength == 0) {
+            if (end > start && tail[end - 1] == '\r') {
+                end--;
+            }
+            return new String(tail, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+        byte[] joined = new byte[spillLength + end - start];
+        System.arraycopy(spill, 0, joined, 0, spillLength);
+        System.arraycopy(tail, start, joined, spillLength, end - start);
+        int length = joined.length;
+        if (length > 0 && joined[length - 1] == '\r') {
+            length--;
+        }
+        return new String(joined, 0, length, StandardCharsets.ISO_8859_1);
+    }
+    
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, BUFFER_SIZE);
+        if (read <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = read;
+        return true;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buffer[pos++] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == limit) {
+            // Large reads bypass the buffer
+            if (len >= BUFFER_SIZE) {
+                return in.read(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int count = Math.min(len, limit - pos);
+        System.arraycopy(buffer, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+    
+    /**
+     * Bytes that can be read without blocking, buffered or not
+     */
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -1,112 +1,604 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * HttpServer - Handles HTTP requests
  * Implements basic HTTP/1.1 protocol manually
  */
 public class HttpServer {
+    // Persistent connection limits (HTTP/1.1 keep-alive)
+    private static final int KEEP_ALIVE_TIMEOUT_SECONDS = MainServer.getEnvInt("HTTP_KEEP_ALIVE_TIMEOUT", 15);
+    private static final int MAX_REQUESTS_PER_CONNECTION = MainServer.getEnvInt("HTTP_MAX_REQUESTS", 100);
+    // Request head limits
+    static final int MAX_LINE_BYTES = 8192;
+    private static final int MAX_HEADERS = 100;
+    // Largest Content-Length accepted; form encoding can take several bytes per paste character
+    private static final long MAX_BODY_BYTES = MainServer.getEnvInt("HTTP_MAX_BODY_MB", 32) * 1024L * 1024L;
+    // Unread input discarded after a final response, so closing does not reset it
+    private static final int LINGER_MILLIS = 2000;
+    private static final long LINGER_BYTES = 1024 * 1024;
     
-    public static void handleHttpRequest(Socket socket, String firstLine, BufferedReader reader) {
+    // Responses by status class, 1xx to 5xx, and response bytes written
+    private static final Metrics.Counter[] responses = new Metrics.Counter[5];
+    static {
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = Metrics.counter("paste_http_responses_total", "HTTP responses sent, by status class",
+                "code=\"" + (i + 1) + "xx\"");
+        }
+    }
+    private static final Metrics.Counter bytesSent = Metrics.counter("paste_http_response_bytes_total",
+        "HTTP response bytes written, headers included", "");
+    
+    // Whether the response being written on this thread should keep the connection open
+    private static final ThreadLocal<Boolean> keepAliveResponse = ThreadLocal.withInitial(() -> false);
+    // Whether the request being answered on this thread came over HTTP/1.1, which allows chunked responses
+    private static final ThreadLocal<Boolean> chunkedAllowed = ThreadLocal.withInitial(() -> false);
+    
+    /**
+     * Lets a transport take back an idle keep-alive connection instead of
+     * blocking a thread on it until the next request arrives
+     */
+    interface IdleConnectionHandler {
+        /**
+         * @return true if the transport now owns the socket
+         */
+        boolean park(Socket socket, int requestsServed);
+    }
+    
+    public static void handleHttpRequest(Socket socket, String firstLine, HttpInput in) {
+        handleHttpRequest(socket, firstLine, in, null, 0);
+    }
+    
+    /**
+     * Serve requests on one connection until the client closes it, asks for close,
+     * goes idle past the keep-alive timeout or reaches the per-connection limit.
+     * Pipelined requests are answered in order straight from the input buffer.
+     */
+    static void handleHttpRequest(Socket socket, String firstLine, HttpInput in,
+                                  IdleConnectionHandler idleHandler, int requestsServed) {
+        boolean parked = false;
+        boolean responded = false;
         try {
-            // Parse request line
-            String[] parts = firstLine.split(" ");
-            if (parts.length < 3) {
-                sendResponse(socket, 400, "text/plain", "Bad Request");
-                socket.close();
-                return;
-            }
+            socket.setSoTimeout(KEEP_ALIVE_TIMEOUT_SECONDS * 1000);
+            socket.setTcpNoDelay(true);
             
-            String method = parts[0];
-            String path = parts[1];
-            
-            // Read headers
-            StringBuilder headersBuilder = new StringBuilder();
-            int contentLength = 0;
-            String line;
-            while ((line = reader.readLine()) != null && !line.isEmpty()) {
-                headersBuilder.append(line).append("\r\n");
-                if (line.toLowerCase().startsWith("content-length:")) {
-                    contentLength = Integer.parseInt(line.substring(15).trim());
+            String requestLine = firstLine;
+            while (requestLine != null) {
+                // A keep-alive connection may be reused for a WebSocket upgrade
+                if (MainServer.isWebSocketRequest(requestLine)) {
+                    // The WebSocket side closes the socket once its queued writes are out
+                    parked = true;
+                    WebSocketServer.handleWebSocket(socket, requestLine, in);
+                    return;
+                }
+                
+                requestsServed++;
+                boolean keepAlive = handleSingleRequest(socket, requestLine, in,
+                    requestsServed < MAX_REQUESTS_PER_CONNECTION);
+                if (!keepAlive || socket.isClosed()) {
+                    responded = true;
+                    break;
                 }
+                
+                // Nothing pipelined behind this request: let the transport wait for the next one
+                if (idleHandler != null && in.available() == 0) {
+                    parked = idleHandler.park(socket, requestsServed);
+                    if (parked) {
+                        return;
+                    }
+                }
+                
+                requestLine = readRequestLine(in);
             }
-            
-            // Read body if present
-            String body = "";
-            if (contentLength > 0) {
-                char[] bodyChars = new char[contentLength];
-                int read = reader.read(bodyChars, 0, contentLength);
-                body = new String(bodyChars, 0, read);
+        } catch (SocketTimeoutException e) {
+            // Idle keep-alive connection timed out
+        } catch (EOFException e) {
+            // Client went away mid-body
+        } catch (HttpInput.HeadTooLargeException e) {
+            try {
+                keepAliveResponse.set(false);
+                sendResponse(socket, 431, "text/plain", "Request Header Fields Too Large");
+                responded = true;
+            } catch (IOException ex) {
+                // Ignore
             }
-            
-            // Route request
-            RequestHandler.handleRequest(socket, method, path, body);
-            
         } catch (Exception e) {
             ServerLogger.logError("Error handling HTTP request", e);
             try {
+                keepAliveResponse.set(false);
                 sendResponse(socket, 500, "text/plain", "Internal Server Error");
-                socket.close();
+                responded = true;
             } catch (IOException ex) {
                 // Ignore
             }
+        } finally {
+            keepAliveResponse.set(false);
+            if (!parked) {
+                if (responded) {
+                    lingeringClose(socket);
+                }
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
+        }
+    }
+    
+    /**
+     * Half-close after a final response and discard what the client is still sending.
+     * Closing with unread input sends a reset, which can destroy the response before
+     * the client reads it: a refused body, or a request pipelined behind one.
+     */
+    private static void lingeringClose(Socket socket) {
+        if (socket.isClosed()) {
+            return;
+        }
+        try {
+            socket.shutdownOutput();
+            socket.setSoTimeout(LINGER_MILLIS);
+            InputStream raw = socket.getInputStream();
+            byte[] discard = new byte[8192];
+            long deadline = System.currentTimeMillis() + LINGER_MILLIS;
+            long drained = 0;
+            int read;
+            while (drained < LINGER_BYTES && System.currentTimeMillis() < deadline
+                && (read = raw.read(discard)) != -1) {
+                drained += read;
+            }
+        } catch (IOException e) {
+            // Timed out or reset: close anyway
+        }
+    }
+    
+    /**
+     * Parse and route one request
+     * @return true if the connection should stay open for another request
+     */
+    private static boolean handleSingleRequest(Socket socket, String requestLine, HttpInput in,
+                                               boolean allowKeepAlive) throws IOException {
+        // Parse request line: METHOD SP target SP version
+        int firstSpace = requestLine.indexOf(' ');
+        int secondSpace = firstSpace < 0 ? -1 : requestLine.indexOf(' ', firstSpace + 1);
+        if (secondSpace < 0) {
+            keepAliveResponse.set(false);
+            sendResponse(socket, 400, "text/plain", "Bad Request");
+            return false;
+        }
+        
+        String method = requestLine.substring(0, firstSpace);
+        String path = requestLine.substring(firstSpace + 1, secondSpace);
+        String query = "";
+        int questionMark = path.indexOf('?');
+        if (questionMark >= 0) {
+            query = path.substring(questionMark + 1);
+            path = path.substring(0, questionMark);
+        }
+        String version = requestLine.substring(secondSpace + 1).trim();
+        
+        Map<String, String> headers = readHeaders(in);
+        if (headers == null) {
+            // Client went away mid-request
+            return false;
+        }
+        
+        long contentLength = 0;
+        String lengthHeader = headers.get("content-length");
+        if (lengthHeader != null) {
+            try {
+                contentLength = Long.parseLong(lengthHeader);
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+        }
+        String connectionHeader = headers.get("connection");
+        if (connectionHeader != null) {
+            connectionHeader = connectionHeader.toLowerCase(Locale.ROOT);
+        }
+        if (contentLength < 0) {
+            keepAliveResponse.set(false);
+            sendResponse(socket, 400, "text/plain", "Bad Request");
+            return false;
+        }
+        
+        // Bodies are framed by Content-Length only. Chunked or other codings are
+        // refused, and never answered on a connection that stays open: a proxy
+        // that framed the body differently would see the rest as a new request.
+        String transferEncoding = headers.get("transfer-encoding");
+        boolean framingKnown = true;
+        if (transferEncoding != null) {
+            if (lengthHeader != null) {
+                keepAliveResponse.set(false);
+                sendResponse(socket, 400, "text/plain", "Bad Request");
+                return false;
+            }
+            if (!transferEncoding.equalsIgnoreCase("identity")) {
+                keepAliveResponse.set(false);
+                sendResponse(socket, 501, "text/plain", "Transfer-Encoding not supported");
+                return false;
+            }
+            // Identity without a length: the body runs to an end we cannot see
+            framingKnown = false;
+        }
+        
+        // HTTP/1.1 defaults to persistent connections, HTTP/1.0 must opt in
+        boolean keepAlive;
+        if (version.equals("HTTP/1.1")) {
+            keepAlive = connectionHeader == null || !connectionHeader.contains("close");
+        } else {
+            keepAlive = connectionHeader != null && connectionHeader.contains("keep-alive");
+        }
+        keepAlive = keepAlive && allowKeepAlive && framingKnown;
+        
+        // Refuse an oversized body on its declared length, before any of it is read
+        if (contentLength > MAX_BODY_BYTES) {
+            keepAliveResponse.set(false);
+            RequestHandler.sendPayloadTooLarge(socket);
+            return false;
+        }
+        
+        // The body is read by the handler, as it needs it
+        if (contentLength > 0 && "100-continue".equalsIgnoreCase(headers.get("expect"))) {
+            OutputStream out = socket.getOutputStream();
+            out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("UTF-8"));
+            out.flush();
+        }
+        RequestBody body = new RequestBody(in, contentLength);
+        
+        // Route request
+        keepAliveResponse.set(keepAlive);
+        chunkedAllowed.set(version.equals("HTTP/1.1"));
+        RequestHandler.handleRequest(socket, method, path, query, headers, body);
+        
+        // Skip any body the handler did not need, unless that means reading a lot
+        return keepAliveResponse.get() && body.skipRemaining();
+    }
+    
+    /**
+     * Read header lines up to the blank line that ends the head.
+     * Names are lower-cased; a repeated header keeps its last value (see addHeader).
+     * @return the headers, or null if the stream ended first
+     */
+    static Map<String, String> readHeaders(HttpInput in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        int count = 0;
+        String line;
+        while ((line = in.readLine(MAX_LINE_BYTES)) != null) {
+            if (line.isEmpty()) {
+                return headers;
+            }
+            if (++count > MAX_HEADERS) {
+                throw new HttpInput.HeadTooLargeException("More than " + MAX_HEADERS + " headers");
+            }
+            addHeader(headers, line);
+        }
+        return null;
+    }
+    
+    /**
+     * Add one "Name: value" line to a header map; lines without a name are ignored
+     * Repeated body framing headers are joined into a list rather than replaced,
+     * so a request that sends two Content-Lengths fails to parse instead of
+     * being framed by whichever came last.
+     */
+    static void addHeader(Map<String, String> headers, String line) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            return;
+        }
+        String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+        String value = line.substring(colon + 1).trim();
+        if (name.equals("content-length") || name.equals("transfer-encoding")) {
+            headers.merge(name, value, (first, next) -> first + ", " + next);
+        } else {
+            headers.put(name, value);
+        }
+    }
+    
+    /**
+     * Close the connection after the response being written on this thread,
+     * for handlers that stop reading a request body part way
+     */
+    static void closeAfterResponse() {
+        keepAliveResponse.set(false);
+    }
+    
+    /**
+     * Read the next request line, skipping blank lines between pipelined requests
+     */
+    static String readRequestLine(HttpInput in) throws IOException {
+        String line;
+        while ((line = in.readLine(MAX_LINE_BYTES)) != null) {
+            if (!line.isEmpty()) {
+                return line;
+            }
         }
+        return null;
+    }
+    
+    /**
+     * Connection headers for the response currently being written on this thread
+     */
+    private static String connectionHeaders() {
+        if (keepAliveResponse.get()) {
+            return "Connection: keep-alive\r\n"
+                + "Keep-Alive: timeout=" + KEEP_ALIVE_TIMEOUT_SECONDS + ", max=" + MAX_REQUESTS_PER_CONNECTION + "\r\n";
+        }
+        return "Connection: close\r\n";
     }
     
     public static void sendResponse(Socket socket, int statusCode, String contentType, String body) throws IOException {
+        sendBytes(socket, statusCode, contentType + "; charset=UTF-8", "", body.getBytes("UTF-8"));
+    }
+    
+    /**
+     * Send a ready-made body, given as one or more consecutive parts.
+     * extraHeaders are complete header lines, each ending in CRLF.
+     */
+    public static void sendBytes(Socket socket, int statusCode, String contentType, String extraHeaders,
+                                 byte[]... body) throws IOException {
+        long length = 0;
+        for (byte[] part : body) {
+            length += part.length;
+        }
+        String headers = responseHeaders(statusCode, contentType, length, extraHeaders);
+        bytesSent.add(headers.length() + length);
+        
+        // Headers and a small body leave in one segment; persistent connections
+        // would otherwise hit Nagle/delayed-ACK stalls between the two writes
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        out.write(headers.getBytes("UTF-8"));
+        for (byte[] part : body) {
+            out.write(part);
+        }
+        out.flush();
+    }
+    
+    /**
+     * Start a response whose length is not known up front; the handler writes the
+     * body to the returned stream and closes it to end the response. HTTP/1.1
+     * clients get it chunked, one chunk per 8 KB; HTTP/1.0 clients get it unframed,
+     * ended by closing the connection. Closing the stream leaves the socket open.
+     */
+    public static OutputStream startStreamingResponse(Socket socket, int statusCode, String contentType,
+                                                      String extraHeaders) throws IOException {
+        boolean chunked = chunkedAllowed.get();
+        if (!chunked) {
+            closeAfterResponse();
+        }
+        String headers = responseHeaders(statusCode, contentType, chunked ? -1 : -2, extraHeaders);
+        bytesSent.add(headers.length());
+        
+        // Headers go out together with the first chunk
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192 + 16);
+        out.write(headers.getBytes("UTF-8"));
+        if (chunked) {
+            return new ChunkedOutputStream(out);
+        }
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesSent.add(len);
+            }
+            
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+    
+    /**
+     * Transfer-Encoding: chunked body; close() writes the last chunk but not the socket
+     */
+    private static final class ChunkedOutputStream extends OutputStream {
+        private static final byte[] CRLF = { '\r', '\n' };
+        private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+        
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int count = 0;
+        private boolean closed = false;
+        
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                writeChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (count == 0 && len >= buffer.length) {
+                // Already a full chunk: send it without copying
+                writeChunk(b, off, len);
+                return;
+            }
+            while (len > 0) {
+                if (count == buffer.length) {
+                    writeChunk();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            out.flush();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeChunk();
+            out.write(LAST_CHUNK);
+            out.flush();
+        }
+        
+        private void writeChunk() throws IOException {
+            if (count > 0) {
+                writeChunk(buffer, 0, count);
+                count = 0;
+            }
+        }
+        
+        private void writeChunk(byte[] b, int off, int len) throws IOException {
+            bytesSent.add(len);
+            out.write(Integer.toHexString(len).getBytes("US-ASCII"));
+            out.write(CRLF);
+            out.write(b, off, len);
+            out.write(CRLF);
+        }
+    }
+    
+    /**
+     * Send a file from disk. On a channel-backed socket (nio mode) the kernel copies
+     * it straight from the page cache with transferTo; otherwise it is streamed.
+     */
+    public static void sendFile(Socket socket, int statusCode, String contentType, String extraHeaders,
+                                Path path, long length) throws IOException {
+        String headers = responseHeaders(statusCode, contentType, length, extraHeaders);
+        bytesSent.add(headers.length() + length);
         OutputStream out = socket.getOutputStream();
-        PrintWriter writer = new PrintWriter(out, false);
+        out.write(headers.getBytes("UTF-8"));
+        out.flush();
+        
+        SocketChannel channel = socket.getChannel();
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel != null) {
+                long position = 0;
+                while (position < length) {
+                    long sent = file.transferTo(position, length - position, channel);
+                    if (sent <= 0) {
+                        throw new EOFException("File shrank while sending: " + path);
+                    }
+                    position += sent;
+                }
+            } else {
+                InputStream in = Channels.newInputStream(file);
+                byte[] buffer = new byte[64 * 1024];
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("File shrank while sending: " + path);
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+                out.flush();
+            }
+        }
+    }
+    
+    /**
+     * 304 Not Modified: headers only, never a body
+     */
+    public static void sendNotModified(Socket socket, String extraHeaders) throws IOException {
+        StringBuilder headers = new StringBuilder(384);
+        responses[2].increment();
+        headers.append("HTTP/1.1 304 Not Modified\r\n");
+        headers.append(extraHeaders);
+        headers.append(connectionHeaders());
+        headers.append("Access-Control-Allow-Origin: *\r\n");
+        headers.append("\r\n");
+        
+        OutputStream out = socket.getOutputStream();
+        byte[] head = headers.toString().getBytes("UTF-8");
+        bytesSent.add(head.length);
+        out.write(head);
+        out.flush();
+    }
+    
+    /**
+     * contentLength -1 means a chunked body, -2 a body ended by closing the connection
+     */
+    private static String responseHeaders(int statusCode, String contentType, long contentLength, String extraHeaders) {
+        StringBuilder headers = new StringBuilder(512);
         
         // Status line
+        responses[Math.max(1, Math.min(5, statusCode / 100)) - 1].increment();
         String statusText = getStatusText(statusCode);
-        writer.print("HTTP/1.1 " + statusCode + " " + statusText + "\r\n");
+        headers.append("HTTP/1.1 ").append(statusCode).append(" ").append(statusText).append("\r\n");
         
         // Headers
-        writer.print("Content-Type: " + contentType + "; charset=UTF-8\r\n");
-        writer.print("Content-Length: " + body.getBytes("UTF-8").length + "\r\n");
-        writer.print("Connection: close\r\n");
+        headers.append("Content-Type: ").append(contentType).append("\r\n");
+        if (contentLength >= 0) {
+            headers.append("Content-Length: ").append(contentLength).append("\r\n");
+        } else if (contentLength == -1) {
+            headers.append("Transfer-Encoding: chunked\r\n");
+        }
+        headers.append(extraHeaders);
+        headers.append(connectionHeaders());
         
         // CORS headers - Allow requests from any origin for API access
-        writer.print("Access-Control-Allow-Origin: *\r\n");
-        writer.print("Access-Control-Allow-Methods: GET, POST, PUT, DELETE, OPTIONS\r\n");
-        writer.print("Access-Control-Allow-Headers: Content-Type, Authorization\r\n");
-        writer.print("Access-Control-Max-Age: 86400\r\n");
+        headers.append("Access-Control-Allow-Origin: *\r\n");
+        headers.append("Access-Control-Allow-Methods: GET, POST, PUT, DELETE, OPTIONS\r\n");
+        headers.append("Access-Control-Allow-Headers: Content-Type, Authorization\r\n");
+        headers.append("Access-Control-Max-Age: 86400\r\n");
         
-        writer.print("\r\n");
-        writer.flush();
-        
-        // Body
-        out.write(body.getBytes("UTF-8"));
-        out.flush();
+        headers.append("\r\n");
+        return headers.toString();
     }
     
     public static void sendRedirect(Socket socket, String location) throws IOException {
-        OutputStream out = socket.getOutputStream();
-        PrintWriter writer = new PrintWriter(out, false);
+        StringBuilder headers = new StringBuilder(384);
         
-        writer.print("HTTP/1.1 303 See Other\r\n");
-        writer.print("Location: " + location + "\r\n");
-        writer.print("Content-Length: 0\r\n");
-        writer.print("Connection: close\r\n");
+        responses[2].increment();
+        headers.append("HTTP/1.1 303 See Other\r\n");
+        headers.append("Location: ").append(location).append("\r\n");
+        headers.append("Content-Length: 0\r\n");
+        headers.append(connectionHeaders());
         
         // CORS headers
-        writer.print("Access-Control-Allow-Origin: *\r\n");
-        writer.print("Access-Control-Allow-Methods: GET, POST, PUT, DELETE, OPTIONS\r\n");
-        writer.print("Access-Control-Allow-Headers: Content-Type, Authorization\r\n");
+        headers.append("Access-Control-Allow-Origin: *\r\n");
+        headers.append("Access-Control-Allow-Methods: GET, POST, PUT, DELETE, OPTIONS\r\n");
+        headers.append("Access-Control-Allow-Headers: Content-Type, Authorization\r\n");
+        
+        headers.append("\r\n");
         
-        writer.print("\r\n");
-        writer.flush();
+        OutputStream out = socket.getOutputStream();
+        byte[] head = headers.toString().getBytes("UTF-8");
+        bytesSent.add(head.length);
+        out.write(head);
+        out.flush();
     }
     
     private static String getStatusText(int code) {
         switch (code) {
             case 200: return "OK";
             case 303: return "See Other";
+            case 304: return "Not Modified";
             case 400: return "Bad Request";
+            case 403: return "Forbidden";
             case 404: return "Not Found";
             case 410: return "Gone";
             case 413: return "Payload Too Large";
+            case 431: return "Request Header Fields Too Large";
             case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
             default: return "Unknown";
         }
     }
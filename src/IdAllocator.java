@@ -0,0 +1,84 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * IdAllocator - Hands out paste numbers from memory, persisting them in blocks
+ * The counter file holds the highest number that may already be in use. Before
+ * a number past it is handed out, the ceiling is moved a whole block ahead and
+ * written; everything below it is allocated with a single atomic increment.
+ * After a crash the unused rest of the block is skipped, never reused.
+ */
+public class IdAllocator {
+    private final Path counterFile;
+    private final long blockSize;
+    private final AtomicLong last = new AtomicLong();
+    private final ReentrantLock reserveLock = new ReentrantLock();
+    private volatile long reservedUntil;
+    
+    public IdAllocator(Path counterFile, long blockSize) {
+        this.counterFile = counterFile;
+        this.blockSize = blockSize;
+    }
+    
+    /**
+     * Resume after the counter file or the highest number already on disk, whichever is larger
+     */
+    public void recover(long highestExisting) throws IOException {
+        long stored = 0;
+        if (Files.exists(counterFile)) {
+            String value = new String(Files.readAllBytes(counterFile), StandardCharsets.UTF_8).trim();
+            try {
+                stored = value.isEmpty() ? 0 : Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                ServerLogger.warn("Invalid counter file (" + value + "), recovering from existing pastes");
+            }
+        }
+        long start = Math.max(stored, highestExisting);
+        last.set(start);
+        reservedUntil = start;
+    }
+    
+    /**
+     * Next unused number; only the first caller past a block boundary touches the disk
+     */
+    public long next() throws IOException {
+        long number = last.incrementAndGet();
+        if (number > reservedUntil) {
+            reserveLock.lock();
+            try {
+                while (number > reservedUntil) {
+                    long ceiling = reservedUntil + blockSize;
+                    write(ceiling);
+                    reservedUntil = ceiling;
+                }
+            } finally {
+                reserveLock.unlock();
+            }
+        }
+        return number;
+    }
+    
+    /**
+     * Record the last number actually used, so a clean restart skips nothing
+     */
+    public void close() {
+        reserveLock.lock();
+        try {
+            write(last.get());
+            reservedUntil = last.get();
+        } catch (IOException e) {
+            ServerLogger.logError("Failed to save paste counter", e);
+        } finally {
+            reserveLock.unlock();
+        }
+    }
+    
+    private void write(long value) throws IOException {
+        Path temp = counterFile.resolveSibling(counterFile.getFileName() + ".tmp");
+        Files.write(temp, String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, counterFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
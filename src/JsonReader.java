@@ -0,0 +1,437 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * JsonReader - Single-pass pull parser for JSON held as UTF-8 bytes
+ * The caller walks the document with beginObject/hasNext/nextName/next... and
+ * skips what it does not need with skipValue, so nothing is parsed twice and no
+ * intermediate maps are built. A string without escapes is decoded in one go
+ * from the bytes between its quotes; escapes, \\u ones included, are decoded as
+ * they come, so a surrogate pair written as two \\u escapes comes out as that pair.
+ * Malformed input raises MalformedJsonException, never a runtime exception.
+ */
+public final class JsonReader {
+    
+    /**
+     * Kind of the next value, from peek()
+     */
+    enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, STRING, NUMBER, BOOLEAN, NULL }
+    
+    /**
+     * Input that is not the JSON the caller expected
+     */
+    static final class MalformedJsonException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        MalformedJsonException(String message) {
+            super(message);
+        }
+    }
+    
+    // Nesting allowed at most; skipValue recurses once per level
+    private static final int MAX_DEPTH = 256;
+    
+    private final byte[] data;
+    private final int end;
+    private int pos;
+    
+    // Whether a comma is due before the next member or element, per open object or array
+    private boolean[] needsComma = new boolean[16];
+    private int depth = 0;
+    
+    public JsonReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+    
+    public JsonReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+    
+    public void beginObject() throws IOException {
+        expect('{');
+        push();
+    }
+    
+    public void endObject() throws IOException {
+        expect('}');
+        pop();
+    }
+    
+    public void beginArray() throws IOException {
+        expect('[');
+        push();
+    }
+    
+    public void endArray() throws IOException {
+        expect(']');
+        pop();
+    }
+    
+    /**
+     * Whether the open object or array has another member or element; consumes the comma before it
+     */
+    public boolean hasNext() throws IOException {
+        int c = peekByte();
+        if (c == '}' || c == ']') {
+            return false;
+        }
+        if (needsComma[depth]) {
+            expect(',');
+            needsComma[depth] = false;
+        }
+        return true;
+    }
+    
+    public String nextName() throws IOException {
+        String name = readString();
+        expect(':');
+        return name;
+    }
+    
+    public Token peek() throws IOException {
+        int c = peekByte();
+        switch (c) {
+            case '{': return Token.BEGIN_OBJECT;
+            case '}': return Token.END_OBJECT;
+            case '[': return Token.BEGIN_ARRAY;
+            case ']': return Token.END_ARRAY;
+            case '"': return Token.STRING;
+            case 't':
+            case 'f': return Token.BOOLEAN;
+            case 'n': return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return Token.NUMBER;
+                }
+                throw malformed(c < 0 ? "Unexpected end of input" : "Unexpected character '" + (char) c + "'");
+        }
+    }
+    
+    /**
+     * A string value, or null for a JSON null
+     */
+    public String nextString() throws IOException {
+        if (peekByte() == 'n') {
+            nextNull();
+            return null;
+        }
+        String value = readString();
+        valueRead();
+        return value;
+    }
+    
+    public long nextLong() throws IOException {
+        peekByte();
+        boolean negative = pos < end && data[pos] == '-';
+        if (negative) {
+            pos++;
+        }
+        int start = pos;
+        long value = 0;
+        while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+            int digit = data[pos++] - '0';
+            // Accumulate negatively so Long.MIN_VALUE fits
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                throw malformed("Number out of range");
+            }
+            value = value * 10 - digit;
+        }
+        if (pos == start) {
+            throw malformed("Expected a number");
+        }
+        if (pos < end && (data[pos] == '.' || data[pos] == 'e' || data[pos] == 'E')) {
+            throw malformed("Expected an integer");
+        }
+        if (!negative && value == Long.MIN_VALUE) {
+            throw malformed("Number out of range");
+        }
+        valueRead();
+        return negative ? value : -value;
+    }
+    
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw malformed("Number out of range");
+        }
+        return (int) value;
+    }
+    
+    public boolean nextBoolean() throws IOException {
+        int c = peekByte();
+        if (c == 't') {
+            literal("true");
+            return true;
+        }
+        literal("false");
+        return false;
+    }
+    
+    public void nextNull() throws IOException {
+        peekByte();
+        literal("null");
+    }
+    
+    /**
+     * Skip the next value, whatever it is, nested objects and arrays included
+     */
+    public void skipValue() throws IOException {
+        Token token = peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    readString();
+                    expect(':');
+                    skipValue();
+                }
+                endObject();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case STRING:
+                skipString();
+                valueRead();
+                break;
+            case NUMBER:
+                skipNumber();
+                valueRead();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw malformed("Expected a value");
+        }
+    }
+    
+    /**
+     * Check that nothing but whitespace follows the document
+     */
+    public void endDocument() throws IOException {
+        if (peekByte() >= 0) {
+            throw malformed("Data after the end of the document");
+        }
+    }
+    
+    private void push() throws IOException {
+        if (depth == MAX_DEPTH) {
+            throw malformed("Nested deeper than " + MAX_DEPTH);
+        }
+        depth++;
+        if (depth == needsComma.length) {
+            boolean[] grown = new boolean[depth * 2];
+            System.arraycopy(needsComma, 0, grown, 0, depth);
+            needsComma = grown;
+        }
+        needsComma[depth] = false;
+    }
+    
+    private void pop() throws IOException {
+        if (depth == 0) {
+            throw malformed("Unbalanced close");
+        }
+        depth--;
+        valueRead();
+    }
+    
+    private void valueRead() {
+        needsComma[depth] = true;
+    }
+    
+    /**
+     * Next non-whitespace byte without consuming it, or -1 at the end
+     */
+    private int peekByte() {
+        while (pos < end) {
+            byte b = data[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return b & 0xFF;
+            }
+            pos++;
+        }
+        return -1;
+    }
+    
+    private void expect(char c) throws IOException {
+        int next = peekByte();
+        if (next != c) {
+            throw malformed(next < 0 ? "Unexpected end of input, expected '" + c + "'"
+                : "Expected '" + c + "' but found '" + (char) next + "'");
+        }
+        pos++;
+    }
+    
+    private void literal(String word) throws IOException {
+        if (end - pos < word.length()) {
+            throw malformed("Expected " + word);
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (data[pos + i] != word.charAt(i)) {
+                throw malformed("Expected " + word);
+            }
+        }
+        pos += word.length();
+        valueRead();
+    }
+    
+    private String readString() throws IOException {
+        expect('"');
+        int start = pos;
+        // Fast path: no escapes, so the bytes between the quotes are the string
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                pos++;
+                return new String(data, start, pos - 1 - start, StandardCharsets.UTF_8);
+            }
+            if (b == '\\') {
+                break;
+            }
+            pos++;
+        }
+        
+        // Slow path: decode into a char array, escapes and UTF-8 sequences as they come
+        pos = start;
+        char[] chars = new char[Math.min(end - start, 256)];
+        int length = 0;
+        while (true) {
+            if (pos >= end) {
+                throw malformed("Unterminated string");
+            }
+            // One step adds at most two chars
+            if (length + 2 > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, 16));
+            }
+            byte b = data[pos];
+            if (b >= 0) {
+                if (b == '"') {
+                    pos++;
+                    return new String(chars, 0, length);
+                }
+                if (b != '\\') {
+                    chars[length++] = (char) b;
+                    pos++;
+                    continue;
+                }
+                if (pos + 1 >= end) {
+                    throw malformed("Unterminated string");
+                }
+                byte escape = data[pos + 1];
+                pos += 2;
+                switch (escape) {
+                    case '"': chars[length++] = '"'; break;
+                    case '\\': chars[length++] = '\\'; break;
+                    case '/': chars[length++] = '/'; break;
+                    case 'b': chars[length++] = '\b'; break;
+                    case 'f': chars[length++] = '\f'; break;
+                    case 'n': chars[length++] = '\n'; break;
+                    case 'r': chars[length++] = '\r'; break;
+                    case 't': chars[length++] = '\t'; break;
+                    case 'u': chars[length++] = readHex4(); break;
+                    default: throw malformed("Invalid escape \\" + (char) (escape & 0xFF));
+                }
+            } else {
+                length = decodeUtf8(chars, length);
+            }
+        }
+    }
+    
+    /**
+     * Decode the multi-byte UTF-8 sequence at pos into chars; an invalid byte becomes U+FFFD
+     * @return the new length of chars
+     */
+    private int decodeUtf8(char[] chars, int length) {
+        int lead = data[pos] & 0xFF;
+        if (lead >= 0xC2 && lead <= 0xDF && pos + 1 < end && continuation(data[pos + 1])) {
+            chars[length++] = (char) (((lead & 0x1F) << 6) | (data[pos + 1] & 0x3F));
+            pos += 2;
+            return length;
+        }
+        if (lead >= 0xE0 && lead <= 0xEF && pos + 2 < end && continuation(data[pos + 1]) && continuation(data[pos + 2])) {
+            int c = ((lead & 0x0F) << 12) | ((data[pos + 1] & 0x3F) << 6) | (data[pos + 2] & 0x3F);
+            // Overlong forms and encoded surrogates are invalid
+            if (c >= 0x800 && !Character.isSurrogate((char) c)) {
+                chars[length++] = (char) c;
+                pos += 3;
+                return length;
+            }
+        } else if (lead >= 0xF0 && lead <= 0xF4 && pos + 3 < end && continuation(data[pos + 1])
+                && continuation(data[pos + 2]) && continuation(data[pos + 3])) {
+            int codePoint = ((lead & 0x07) << 18) | ((data[pos + 1] & 0x3F) << 12)
+                | ((data[pos + 2] & 0x3F) << 6) | (data[pos + 3] & 0x3F);
+            if (codePoint >= 0x10000 && codePoint <= 0x10FFFF) {
+                chars[length++] = Character.highSurrogate(codePoint);
+                chars[length++] = Character.lowSurrogate(codePoint);
+                pos += 4;
+                return length;
+            }
+        }
+        chars[length++] = '\uFFFD';
+        pos++;
+        return length;
+    }
+    
+    private static boolean continuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+    
+    private char readHex4() throws IOException {
+        if (end - pos < 4) {
+            throw malformed("Unterminated \\u escape");
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(data[pos++], 16);
+            if (digit < 0) {
+                throw malformed("Invalid \\u escape");
+            }
+            value = (value << 4) | digit;
+        }
+        return (char) value;
+    }
+    
+    private void skipString() throws IOException {
+        expect('"');
+        while (pos < end) {
+            byte b = data[pos++];
+            if (b == '"') {
+                return;
+            }
+            if (b == '\\') {
+                pos++;
+            }
+        }
+        throw malformed("Unterminated string");
+    }
+    
+    private void skipNumber() throws IOException {
+        int start = pos;
+        while (pos < end) {
+            byte b = data[pos];
+            if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (pos == start) {
+            throw malformed("Expected a number");
+        }
+    }
+    
+    private MalformedJsonException malformed(String message) {
+        return new MalformedJsonException(message + " at byte " + pos);
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * JsonWriter - Streaming JSON output encoded straight to UTF-8 bytes
+ * Values go into a byte buffer taken from a small pool: either flushed to an
+ * OutputStream whenever it fills (to()), or kept and grown for callers that
+ * need the finished bytes (buffered()). Strings are copied a run of safe ASCII
+ * at a time; only '"', '\\' and control characters are escaped, through a lookup
+ * table, and other characters are written as raw UTF-8. A lone surrogate, which
+ * has no UTF-8 form, is written as a \\u escape.
+ * Commas and colons are placed automatically. close() returns the buffer to the
+ * pool, so a writer is used once, in a try-with-resources block.
+ */
+public final class JsonWriter implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final ArrayBlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(64);
+    
+    // Escape for each ASCII character: 0 copies it as is, 'u' means \\u00XX, else \\ and that letter
+    private static final byte[] ESCAPES = new byte[128];
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    // Widest output of one char: \\uXXXX
+    private static final int MAX_CHAR_BYTES = 6;
+    
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = 'u';
+        }
+        ESCAPES['"'] = '"';
+        ESCAPES['\\'] = '\\';
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['\t'] = 't';
+    }
+    
+    private final OutputStream out; // null when the bytes are kept
+    private final byte[] pooled;
+    private byte[] buffer;
+    private int count = 0;
+    
+    // Whether the object or array open at each depth already has a member, for commas
+    private boolean[] hasMember = new boolean[16];
+    private int depth = 0;
+    private boolean afterName = false;
+    
+    private JsonWriter(OutputStream out) {
+        this.out = out;
+        byte[] reused = POOL.poll();
+        this.pooled = reused != null ? reused : new byte[BUFFER_SIZE];
+        this.buffer = pooled;
+    }
+    
+    /**
+     * Writer that sends its output to out as the buffer fills; close() flushes and closes out
+     */
+    public static JsonWriter to(OutputStream out) {
+        return new JsonWriter(out);
+    }
+    
+    /**
+     * Writer that keeps its output for toByteArray() or toByteBuffer()
+     */
+    public static JsonWriter buffered() {
+        return new JsonWriter(null);
+    }
+    
+    public JsonWriter beginObject() throws IOException {
+        beforeValue();
+        return openBracket('{');
+    }
+    
+    public JsonWriter endObject() throws IOException {
+        return closeBracket('}');
+    }
+    
+    public JsonWriter beginArray() throws IOException {
+        beforeValue();
+        return openBracket('[');
+    }
+    
+    public JsonWriter endArray() throws IOException {
+        return closeBracket(']');
+    }
+    
+    /**
+     * Member name inside an object; the next value call writes its value
+     */
+    public JsonWriter name(String name) throws IOException {
+        if (hasMember[depth]) {
+            writeByte(',');
+        }
+        hasMember[depth] = true;
+        writeString(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+    
+    /**
+     * A string value, or null
+     */
+    public JsonWriter value(String value) throws IOException {
+        beforeValue();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+    
+    public JsonWriter value(long value) throws IOException {
+        beforeValue();
+        ensure(20);
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                writeAscii(Long.toString(value));
+                return this;
+            }
+            buffer[count++] = '-';
+            value = -value;
+        }
+        // Digits are produced backwards, then placed
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int at = count + digits;
+        do {
+            buffer[--at] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        count += digits;
+        return this;
+    }
+    
+    public JsonWriter value(boolean value) throws IOException {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+    
+    public JsonWriter field(String name, String value) throws IOException {
+        return name(name).value(value);
+    }
+    
+    public JsonWriter field(String name, long value) throws IOException {
+        return name(name).value(value);
+    }
+    
+    public JsonWriter field(String name, boolean value) throws IOException {
+        return name(name).value(value);
+    }
+    
+    /**
+     * End the current line, for newline-delimited JSON; only valid between top-level values
+     */
+    public JsonWriter newline() throws IOException {
+        writeByte('\n');
+        return this;
+    }
+    
+    /**
+     * Bytes written so far by a buffered() writer
+     */
+    public int size() {
+        return count;
+    }
+    
+    /**
+     * A copy of a buffered() writer's output
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[count];
+        System.arraycopy(buffer, 0, bytes, 0, count);
+        return bytes;
+    }
+    
+    /**
+     * A buffered() writer's output without copying it; valid until close()
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buffer, 0, count);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            if (out != null) {
+                flushBuffer();
+                out.close();
+            }
+        } finally {
+            count = 0;
+            buffer = null;
+            POOL.offer(pooled);
+        }
+    }
+    
+    private JsonWriter openBracket(char bracket) throws IOException {
+        writeByte(bracket);
+        depth++;
+        if (depth == hasMember.length) {
+            boolean[] grown = new boolean[depth * 2];
+            System.arraycopy(hasMember, 0, grown, 0, depth);
+            hasMember = grown;
+        }
+        hasMember[depth] = false;
+        return this;
+    }
+    
+    private JsonWriter closeBracket(char bracket) throws IOException {
+        writeByte(bracket);
+        depth--;
+        return this;
+    }
+    
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0) {
+            if (hasMember[depth]) {
+                writeByte(',');
+            }
+            hasMember[depth] = true;
+        }
+    }
+    
+    private void writeString(String s) throws IOException {
+        writeByte('"');
+        int length = s.length();
+        int i = 0;
+        while (i < length) {
+            ensure(MAX_CHAR_BYTES);
+            // As many chars as surely fit, so the loop below never checks for room
+            int end = Math.min(length, i + (buffer.length - count) / MAX_CHAR_BYTES);
+            byte[] buf = buffer;
+            int pos = count;
+            while (i < end) {
+                char c = s.charAt(i++);
+                if (c < 0x80) {
+                    byte escape = ESCAPES[c];
+                    if (escape == 0) {
+                        buf[pos++] = (byte) c;
+                    } else if (escape == 'u') {
+                        pos = writeUnicodeEscape(buf, pos, c);
+                    } else {
+                        buf[pos++] = '\\';
+                        buf[pos++] = escape;
+                    }
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (!Character.isSurrogate(c)) {
+                    buf[pos++] = (byte) (0xE0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(s.charAt(i))) {
+                    // Two chars in four bytes, so taking the second one past end still fits
+                    int codePoint = Character.toCodePoint(c, s.charAt(i++));
+                    buf[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                    buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    pos = writeUnicodeEscape(buf, pos, c);
+                }
+            }
+            count = pos;
+        }
+        writeByte('"');
+    }
+    
+    private static int writeUnicodeEscape(byte[] buf, int pos, char c) {
+        buf[pos++] = '\\';
+        buf[pos++] = 'u';
+        buf[pos++] = HEX[(c >> 12) & 0xF];
+        buf[pos++] = HEX[(c >> 8) & 0xF];
+        buf[pos++] = HEX[(c >> 4) & 0xF];
+        buf[pos++] = HEX[c & 0xF];
+        return pos;
+    }
+    
+    private void writeAscii(String s) throws IOException {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[count++] = (byte) s.charAt(i);
+        }
+    }
+    
+    private void writeByte(char c) throws IOException {
+        ensure(1);
+        buffer[count++] = (byte) c;
+    }
+    
+    /**
+     * Make room for at least n more bytes: flush to the stream, or grow the buffer
+     */
+    private void ensure(int n) throws IOException {
+        if (buffer.length - count >= n) {
+            return;
+        }
+        if (out != null) {
+            flushBuffer();
+        } else {
+            byte[] grown = new byte[Math.max(buffer.length * 2, count + n)];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            buffer = grown;
+        }
+    }
+    
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
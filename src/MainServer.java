@@ -9,34 +9,70 @@ import java.util.concurrent.*;
 public class MainServer {
     private static final int PORT = getPort();
     
+    // Connection transport: "threads" (platform thread per connection),
+    // "virtual" (virtual thread per connection) or "nio" (selector event loops)
+    private static final String SERVER_MODE = getServerMode();
+    
     private static int getPort() {
-        String portEnv = System.getenv("PORT");
-        if (portEnv != null && !portEnv.isEmpty()) {
+        return getEnvInt("PORT", 8080);
+    }
+    
+    private static String getServerMode() {
+        String mode = System.getenv("SERVER_MODE");
+        if (mode == null || mode.isEmpty()) {
+            return "threads";
+        }
+        mode = mode.trim().toLowerCase();
+        if (!mode.equals("threads") && !mode.equals("virtual") && !mode.equals("nio")) {
+            System.err.println("Invalid SERVER_MODE environment variable: " + mode + ", using default threads");
+            return "threads";
+        }
+        return mode;
+    }
+    
+    /**
+     * Read a positive integer setting from the environment, falling back to a default
+     */
+    static int getEnvInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value != null && !value.isEmpty()) {
             try {
-                return Integer.parseInt(portEnv);
+                int parsed = Integer.parseInt(value.trim());
+                if (parsed > 0) {
+                    return parsed;
+                }
             } catch (NumberFormatException e) {
-                System.err.println("Invalid PORT environment variable: " + portEnv + ", using default 8080");
+                // Fall through to warning
             }
+            // Not through ServerLogger, which reads its own settings here
+            System.err.println("Invalid " + name + " environment variable: " + value + ", using default " + defaultValue);
         }
-        return 8080;
+        return defaultValue;
     }
     
     public static void main(String[] args) {
-        System.out.println("Starting Minimal Collaborative Paste Service...");
+        ServerLogger.log("Starting Minimal Collaborative Paste Service...");
         
         // Initialize storage
         Storage.initialize();
         
+        // Reload web/ assets on change if asked to
+        StaticFiles.initialize();
+        
+        if (SERVER_MODE.equals("nio")) {
+            runNio();
+        } else {
+            runThreaded();
+        }
+    }
+    
+    private static void runThreaded() {
         // Create executor for handling concurrent connections
-        ExecutorService executor = Executors.newCachedThreadPool();
+        ExecutorService executor = createConnectionExecutor();
+        Metrics.executor("connections", executor);
         
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("============================================");
-            System.out.println("Server ready on port " + PORT);
-            System.out.println("============================================");
-            System.out.println("Access at http://localhost:" + PORT);
-            System.out.println("Press Ctrl+C to stop");
-            System.out.println("");
+            printBanner();
             
             while (true) {
                 try {
@@ -44,39 +80,104 @@ public class MainServer {
                     // Handle each connection in a separate thread
                     executor.submit(() -> handleConnection(clientSocket));
                 } catch (IOException e) {
-                    System.err.println("Error accepting connection: " + e.getMessage());
+                    ServerLogger.warn("Error accepting connection: " + e.getMessage());
                 }
             }
         } catch (IOException e) {
-            System.err.println("Failed to start server: " + e.getMessage());
-            e.printStackTrace();
+            ServerLogger.logError("Failed to start server", e);
         } finally {
             executor.shutdown();
         }
     }
     
+    /**
+     * Thread-per-connection executor: platform threads, or virtual threads when
+     * SERVER_MODE=virtual and the runtime supports them (Java 21+)
+     */
+    static ExecutorService createConnectionExecutor() {
+        if (SERVER_MODE.equals("virtual")) {
+            try {
+                // Looked up reflectively so the sources still compile with --release 17
+                return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                ServerLogger.warn("Virtual threads need Java 21+ (running " +
+                    System.getProperty("java.version") + "), falling back to platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+    
+    private static void runNio() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int eventLoops = getEnvInt("NIO_EVENT_LOOPS", Math.min(4, cores));
+        int workerThreads = getEnvInt("NIO_WORKER_THREADS", Math.max(8, cores * 4));
+        
+        NioServer server = new NioServer(eventLoops, workerThreads);
+        try {
+            server.bind(PORT);
+            printBanner();
+            ServerLogger.log("NIO transport: " + eventLoops + " event loops, " + workerThreads + " worker threads");
+            server.acceptLoop();
+        } catch (IOException e) {
+            ServerLogger.logError("Failed to start server", e);
+        } finally {
+            server.shutdown();
+        }
+    }
+    
+    private static void printBanner() {
+        ServerLogger.log("Server ready on port " + PORT + " (" + SERVER_MODE + " mode)");
+        ServerLogger.log("Access at http://localhost:" + PORT + ", press Ctrl+C to stop");
+    }
+    
+    /**
+     * Decide from the request line whether a connection is a WebSocket upgrade
+     */
+    static boolean isWebSocketRequest(String firstLine) {
+        return firstLine.startsWith("GET") && firstLine.contains("ws/");
+    }
+    
     private static void handleConnection(Socket socket) {
+        try {
+            handleConnection(socket, socket.getInputStream(), null, 0);
+        } catch (IOException e) {
+            ServerLogger.warn("Error handling connection: " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
+        }
+    }
+    
+    /**
+     * Handle a connection whose bytes are read from the given stream
+     * The NIO transport passes a stream that replays the bytes it already sniffed,
+     * plus a handler that takes the connection back while it sits idle
+     */
+    static void handleConnection(Socket socket, InputStream in,
+                                 HttpServer.IdleConnectionHandler idleHandler, int requestsServed) {
         try {
             // Read first line to determine if HTTP or WebSocket
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(socket.getInputStream())
-            );
+            HttpInput input = new HttpInput(in);
             
-            String firstLine = reader.readLine();
+            String firstLine = HttpServer.readRequestLine(input);
             if (firstLine == null) {
                 socket.close();
                 return;
             }
             
             // Check if this is a WebSocket upgrade request
-            if (firstLine.startsWith("GET") && firstLine.contains("ws/")) {
-                WebSocketServer.handleWebSocket(socket, firstLine, reader);
+            if (isWebSocketRequest(firstLine)) {
+                WebSocketServer.handleWebSocket(socket, firstLine, input);
             } else {
                 // Handle as HTTP request
-                HttpServer.handleHttpRequest(socket, firstLine, reader);
+                HttpServer.handleHttpRequest(socket, firstLine, input, idleHandler, requestsServed);
             }
         } catch (IOException e) {
-            System.err.println("Error handling connection: " + e.getMessage());
+            ServerLogger.warn("Error handling connection: " + e.getMessage());
             try {
                 socket.close();
             } catch (IOException ex) {
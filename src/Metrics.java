@@ -0,0 +1,220 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics - Counters, histograms and gauges served in Prometheus text format
+ * Recording only adds to LongAdders, so hot paths never contend on a lock; the
+ * lock below guards registration and scrapes. Histograms are HDR-style: bucket
+ * bounds double from one to the next, so finding a value's bucket is a count of
+ * leading zeros and the relative error stays the same from microseconds to
+ * seconds. Gauges are read from their owners when /metrics is scraped.
+ */
+public final class Metrics {
+    
+    /**
+     * A count that only goes up
+     */
+    static final class Counter {
+        private final LongAdder count = new LongAdder();
+        
+        void increment() {
+            count.increment();
+        }
+        
+        void add(long n) {
+            count.add(n);
+        }
+    }
+    
+    /**
+     * Distribution of recorded values in power-of-two buckets
+     */
+    static final class Histogram {
+        private final int minShift;
+        private final double scale;
+        // buckets[i] counts values up to 2^(minShift + i); the last one everything larger
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+        
+        Histogram(int minShift, int bounds, double scale) {
+            this.minShift = minShift;
+            this.scale = scale;
+            this.buckets = new LongAdder[bounds + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+        
+        void record(long value) {
+            int index = value <= 1 ? 0 : Math.max(0, 64 - Long.numberOfLeadingZeros(value - 1) - minShift);
+            buckets[Math.min(index, buckets.length - 1)].increment();
+            sum.add(value);
+        }
+        
+        /**
+         * Record the time since start, a System.nanoTime() reading
+         */
+        void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Receives the current values of a gauge, one per label set
+     */
+    interface Sampler {
+        void sample(String labels, double value);
+    }
+    
+    interface GaugeSource {
+        void collect(Sampler out);
+    }
+    
+    /**
+     * All metrics under one name, which share HELP and TYPE lines
+     */
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<String> labels = new ArrayList<>();
+        final List<Object> metrics = new ArrayList<>(); // Counter, Histogram or GaugeSource
+        
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+    
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+    private static final ReentrantLock lock = new ReentrantLock();
+    
+    private Metrics() {
+    }
+    
+    /**
+     * A counter, named with its _total suffix; labels is a Prometheus label list
+     * without braces, like route="create", or ""
+     */
+    static Counter counter(String name, String help, String labels) {
+        Counter counter = new Counter();
+        register(name, help, "counter", labels, counter);
+        return counter;
+    }
+    
+    /**
+     * A histogram of System.nanoTime() durations, from 32 us to 17 s, reported in seconds
+     */
+    static Histogram timer(String name, String help, String labels) {
+        Histogram histogram = new Histogram(15, 20, 1e-9);
+        register(name, help, "histogram", labels, histogram);
+        return histogram;
+    }
+    
+    /**
+     * A histogram of counts or sizes, from 1 to 32768
+     */
+    static Histogram sizes(String name, String help, String labels) {
+        Histogram histogram = new Histogram(0, 16, 1);
+        register(name, help, "histogram", labels, histogram);
+        return histogram;
+    }
+    
+    static void gauge(String name, String help, GaugeSource source) {
+        register(name, help, "gauge", "", source);
+    }
+    
+    static void gauge(String name, String help, LongSupplier value) {
+        gauge(name, help, out -> out.sample("", value.getAsLong()));
+    }
+    
+    /**
+     * Queue depth and busy threads of an executor; only thread pools report them
+     */
+    static void executor(String name, ExecutorService executor) {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            return;
+        }
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        String labels = "executor=\"" + name + "\"";
+        register("paste_executor_queued_tasks", "Tasks waiting for a thread", "gauge", labels,
+            (GaugeSource) out -> out.sample(labels, pool.getQueue().size()));
+        register("paste_executor_active_threads", "Threads running a task", "gauge", labels,
+            (GaugeSource) out -> out.sample(labels, pool.getActiveCount()));
+    }
+    
+    private static void register(String name, String help, String type, String labels, Object metric) {
+        lock.lock();
+        try {
+            Family family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+            family.labels.add(labels);
+            family.metrics.add(metric);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Every metric in Prometheus text exposition format, version 0.0.4
+     */
+    static String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        lock.lock();
+        try {
+            for (Family family : families.values()) {
+                out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+                out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+                for (int i = 0; i < family.metrics.size(); i++) {
+                    Object metric = family.metrics.get(i);
+                    String labels = family.labels.get(i);
+                    if (metric instanceof Counter) {
+                        sample(out, family.name, labels, ((Counter) metric).count.sum());
+                    } else if (metric instanceof Histogram) {
+                        writeHistogram(out, family.name, labels, (Histogram) metric);
+                    } else {
+                        ((GaugeSource) metric).collect((gaugeLabels, value) -> sample(out, family.name, gaugeLabels, value));
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return out.toString();
+    }
+    
+    private static void writeHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < histogram.buckets.length; i++) {
+            cumulative += histogram.buckets[i].sum();
+            String bound = i == histogram.buckets.length - 1 ? "+Inf"
+                : formatNumber((double) (1L << (histogram.minShift + i)) * histogram.scale);
+            sample(out, name + "_bucket", prefix + "le=\"" + bound + "\"", cumulative);
+        }
+        sample(out, name + "_sum", labels, histogram.sum.sum() * histogram.scale);
+        sample(out, name + "_count", labels, cumulative);
+    }
+    
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(formatNumber(value)).append('\n');
+    }
+    
+    private static String formatNumber(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
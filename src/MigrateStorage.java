@@ -0,0 +1,63 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * MigrateStorage - Moves flat data/{id}.json paste files into the sharded layout
+ * Safe to run again: pastes already moved are skipped, and a flat file that has
+ * since been superseded by a sharded copy is removed. Run with the server stopped.
+ *
+ * Usage (from src/): java MigrateStorage [--dry-run]
+ */
+public class MigrateStorage {
+    private static final String DATA_DIR = "../data";
+    
+    public static void main(String[] args) throws IOException {
+        boolean dryRun = args.length > 0 && args[0].equals("--dry-run");
+        
+        String[] names = new File(DATA_DIR).list();
+        if (names == null) {
+            System.err.println("No data directory at " + new File(DATA_DIR).getCanonicalPath());
+            System.exit(1);
+        }
+        Arrays.sort(names);
+        FilePasteStore files = new FilePasteStore(Paths.get(DATA_DIR));
+        
+        int moved = 0;
+        int superseded = 0;
+        int failed = 0;
+        for (String name : names) {
+            if (!name.endsWith(".json")) continue;
+            String id = name.substring(0, name.length() - 5);
+            if (!Storage.isValidId(id)) continue;
+            
+            Path legacy = files.getLegacyFilePath(id);
+            Path sharded = files.getSafeFilePath(id);
+            try {
+                if (Files.exists(sharded)) {
+                    // The server writes the sharded copy, so it is the newer one
+                    if (!dryRun) {
+                        Files.delete(legacy);
+                    }
+                    superseded++;
+                } else {
+                    if (!dryRun) {
+                        Files.createDirectories(sharded.getParent());
+                        Files.move(legacy, sharded, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    moved++;
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to migrate " + id + ": " + e.getMessage());
+                failed++;
+            }
+        }
+        
+        System.out.println((dryRun ? "Would move " : "Moved ") + moved + " paste(s), "
+            + (dryRun ? "would remove " : "removed ") + superseded + " superseded flat file(s)"
+            + (failed > 0 ? ", " + failed + " failed" : ""));
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,717 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NioServer - Non-blocking transport built on ServerSocketChannel and Selector
+ * Accepted channels are spread over a small fixed set of event loops. Each loop
+ * sniffs the request line the same way MainServer.handleConnection does:
+ * plain HTTP requests are handed to a bounded worker pool on a blocking socket,
+ * WebSocket connections stay on the loop so an idle collaborator costs a
+ * selection key and a few hundred bytes instead of a platform thread.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEAD_SIZE = 16 * 1024;
+    private static final int ACCEPT_BACKLOG = 1024;
+    // Connections that have not finished sending a request head are closed after this long
+    private static final long HEAD_TIMEOUT_MS = MainServer.getEnvInt("HTTP_KEEP_ALIVE_TIMEOUT", 15) * 1000L;
+    private static final long IDLE_SWEEP_INTERVAL_MS = 1000;
+    
+    private static final byte[] CLOSE_FRAME = { (byte) 0x88, 0x00 };
+    
+    private enum State { READING_HEAD, HANDSHAKING, WEBSOCKET, HANDED_OFF, CLOSING }
+    
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop = 0;
+    
+    public NioServer(int eventLoops, int workerThreads) {
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        Metrics.executor("nio-workers", workers);
+        this.loops = new EventLoop[eventLoops];
+    }
+    
+    public void bind(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+    }
+    
+    /**
+     * Accept connections on the calling thread and hand them to the event loops round-robin
+     */
+    public void acceptLoop() throws IOException {
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[nextLoop].register(channel, 0);
+                nextLoop = (nextLoop + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                ServerLogger.warn("Error accepting connection: " + e.getMessage());
+            }
+        }
+    }
+    
+    public void shutdown() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        workers.shutdown();
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+    
+    /**
+     * Index of the first '\n' at or after from, or -1
+     */
+    private static int indexOfLineEnd(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Index just past the blank line that terminates the request head, or -1
+     */
+    private static int indexOfHeadEnd(ByteBuffer buffer, int from) {
+        for (int i = from; i + 3 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                    && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Append readable bytes to a pending buffer, growing it when needed
+     */
+    private static ByteBuffer append(ByteBuffer pending, ByteBuffer more) {
+        ByteBuffer combined;
+        if (pending.capacity() - pending.remaining() < more.remaining()) {
+            combined = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.remaining() + more.remaining()));
+            combined.put(pending);
+        } else {
+            combined = pending.compact();
+        }
+        combined.put(more);
+        combined.flip();
+        return combined;
+    }
+    
+    /**
+     * One selector thread plus a task queue for work submitted from other threads
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Shared by every connection on this loop; idle connections keep no read buffer of their own
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final List<Connection> handoffs = new ArrayList<>();
+        private volatile Thread thread;
+        
+        EventLoop() {
+            try {
+                this.selector = Selector.open();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open selector", e);
+            }
+        }
+        
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+        
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+        
+        /**
+         * Start watching a channel; requestsServed carries the keep-alive count
+         * for HTTP connections parked back on the loop between requests
+         */
+        void register(SocketChannel channel, int requestsServed) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key, requestsServed));
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+        
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            long nextSweep = System.currentTimeMillis() + IDLE_SWEEP_INTERVAL_MS;
+            while (true) {
+                try {
+                    selector.select(IDLE_SWEEP_INTERVAL_MS);
+                    
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    
+                    processSelectedKeys();
+                    
+                    // HTTP connections go back to blocking mode, which requires their
+                    // cancelled keys to be flushed from the selector first
+                    while (!handoffs.isEmpty()) {
+                        selector.selectNow();
+                        for (Connection connection : handoffs) {
+                            connection.handOff();
+                        }
+                        handoffs.clear();
+                        processSelectedKeys();
+                    }
+                    
+                    long now = System.currentTimeMillis();
+                    if (now >= nextSweep) {
+                        closeIdleConnections(now);
+                        nextSweep = now + IDLE_SWEEP_INTERVAL_MS;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    ServerLogger.logError("NIO event loop error", e);
+                }
+            }
+        }
+        
+        /**
+         * Close connections stuck before a complete request head: idle keep-alive
+         * connections past their timeout and clients that never finish sending.
+         * Open WebSockets are exempt.
+         */
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && key.isValid() && connection.isIdleSince(now - HEAD_TIMEOUT_MS)) {
+                    connection.closeNow();
+                }
+            }
+        }
+        
+        private void processSelectedKeys() {
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                
+                Connection connection = (Connection) key.attachment();
+                if (connection == null || !key.isValid()) {
+                    continue;
+                }
+                try {
+                    if (key.isWritable()) {
+                        connection.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    connection.closeNow();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Per-channel state. After a successful upgrade this is the WebSocketConnection
+     * registered with WebSocketServer; writes from any thread are queued and
+     * drained by the owning loop.
+     */
+    private final class Connection implements WebSocketConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String remoteAddress;
+        
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile boolean closeAfterFlush = false;
+        
+        // Incoming text messages are applied in order, one worker at a time
+        private final Queue<String> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        
+        // Touched only by the loop thread (or by the handshake worker while reads are paused)
+        private State state = State.READING_HEAD;
+        private final int requestsServed;
+        private long lastActivity = System.currentTimeMillis();
+        private ByteBuffer pending;
+        private ByteArrayOutputStream fragments;
+        private boolean fragmentsCompressed;
+        private volatile String pasteId;
+        private volatile PerMessageDeflate deflate;
+        
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key, int requestsServed) {
+            this.loop = loop;
+            this.requestsServed = requestsServed;
+            this.channel = channel;
+            this.key = key;
+            InetSocketAddress remote = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+            this.remoteAddress = remote != null ? remote.getAddress().getHostAddress() : "unknown";
+        }
+        
+        boolean isIdleSince(long cutoff) {
+            return state == State.READING_HEAD && lastActivity < cutoff;
+        }
+        
+        void read() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            ByteBuffer buffer = loop.readBuffer;
+            while (state == State.READING_HEAD || state == State.WEBSOCKET) {
+                buffer.clear();
+                int read = channel.read(buffer);
+                if (read == -1) {
+                    closeNow();
+                    return;
+                }
+                if (read == 0) {
+                    return;
+                }
+                buffer.flip();
+                
+                ByteBuffer data = buffer;
+                if (pending != null) {
+                    pending = append(pending, buffer);
+                    data = pending;
+                }
+                
+                process(data);
+                if (closed.get() || state == State.CLOSING) {
+                    return;
+                }
+                
+                // Keep only unconsumed bytes; drop the buffer entirely once drained
+                if (!data.hasRemaining()) {
+                    pending = null;
+                } else if (data == buffer) {
+                    pending = ByteBuffer.allocate(Math.max(data.remaining(), 1024));
+                    pending.put(data);
+                    pending.flip();
+                }
+                
+                if (read < buffer.capacity()) {
+                    return;
+                }
+            }
+        }
+        
+        private void process(ByteBuffer data) {
+            if (state == State.READING_HEAD) {
+                processHead(data);
+            } else if (state == State.WEBSOCKET) {
+                processFrames(data);
+            }
+        }
+        
+        /**
+         * Sniff the request line; WebSocket upgrades also wait for the full header block
+         */
+        private void processHead(ByteBuffer data) {
+            int lineEnd = indexOfLineEnd(data, data.position());
+            if (lineEnd == -1) {
+                if (data.remaining() > MAX_HEAD_SIZE) {
+                    closeNow();
+                }
+                return;
+            }
+            
+            byte[] lineBytes = new byte[lineEnd - data.position()];
+            data.get(data.position(), lineBytes);
+            String firstLine = new String(lineBytes, StandardCharsets.ISO_8859_1).trim();
+            
+            if (!MainServer.isWebSocketRequest(firstLine)) {
+                // Leave everything unconsumed; the worker replays it through the normal HTTP path
+                state = State.HANDED_OFF;
+                key.cancel();
+                loop.handoffs.add(this);
+                return;
+            }
+            
+            int headEnd = indexOfHeadEnd(data, data.position());
+            if (headEnd == -1) {
+                if (data.remaining() > MAX_HEAD_SIZE) {
+                    closeNow();
+                }
+                return;
+            }
+            
+            byte[] headerBytes = new byte[headEnd - lineEnd - 1];
+            data.get(lineEnd + 1, headerBytes);
+            data.position(headEnd);
+            String headers = new String(headerBytes, StandardCharsets.ISO_8859_1);
+            
+            // The handshake touches storage, so it runs on a worker with reads paused
+            state = State.HANDSHAKING;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            submit(() -> completeHandshake(firstLine, headers));
+        }
+        
+        private void completeHandshake(String firstLine, String headers) {
+            Map<String, String> headerMap = new HashMap<>();
+            for (String line : headers.split("\r?\n")) {
+                HttpServer.addHeader(headerMap, line);
+            }
+            String id = WebSocketServer.openSession(this, firstLine, headerMap);
+            if (id == null) {
+                return;
+            }
+            pasteId = id;
+            loop.execute(() -> {
+                if (closed.get()) {
+                    submit(() -> WebSocketServer.onClose(this, id));
+                    return;
+                }
+                state = State.WEBSOCKET;
+                if (pending != null) {
+                    process(pending);
+                    if (!pending.hasRemaining()) {
+                        pending = null;
+                    }
+                }
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            });
+        }
+        
+        /**
+         * Decode every complete frame in the buffer, leaving a partial frame unconsumed
+         */
+        private void processFrames(ByteBuffer data) {
+            while (state == State.WEBSOCKET && !closed.get()) {
+                int start = data.position();
+                int available = data.remaining();
+                if (available < 2) {
+                    return;
+                }
+                
+                int b1 = data.get(start) & 0xFF;
+                int b2 = data.get(start + 1) & 0xFF;
+                boolean masked = (b2 & 0x80) != 0;
+                long payloadLength = b2 & 0x7F;
+                int headerLength = 2;
+                
+                // Extended payload length
+                if (payloadLength == 126) {
+                    if (available < 4) return;
+                    payloadLength = data.getShort(start + 2) & 0xFFFF;
+                    headerLength = 4;
+                } else if (payloadLength == 127) {
+                    if (available < 10) return;
+                    payloadLength = data.getLong(start + 2);
+                    headerLength = 10;
+                }
+                if (masked) {
+                    headerLength += 4;
+                }
+                
+                if (payloadLength < 0 || payloadLength > WebSocketServer.MAX_MESSAGE_SIZE) {
+                    closeTooBig();
+                    return;
+                }
+                if (available < headerLength + payloadLength) {
+                    return;
+                }
+                
+                byte[] payload = new byte[(int) payloadLength];
+                data.get(start + headerLength, payload);
+                data.position(start + headerLength + (int) payloadLength);
+                
+                // Unmask payload
+                if (masked) {
+                    int maskOffset = start + headerLength - 4;
+                    for (int i = 0; i < payload.length; i++) {
+                        payload[i] = (byte) (payload[i] ^ data.get(maskOffset + (i & 3)));
+                    }
+                }
+                
+                handleFrame(b1, payload);
+            }
+        }
+        
+        /**
+         * Answer a message over WebSocketServer.MAX_MESSAGE_SIZE with close code 1009 and read nothing more:
+         * the rest of its payload would be parsed as frames
+         */
+        private void closeTooBig() {
+            state = State.CLOSING;
+            pending = null;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            enqueue(WebSocketServer.closeFrame(1009, "Message too big"));
+            close();
+        }
+        
+        private void handleFrame(int b1, byte[] payload) {
+            boolean fin = (b1 & 0x80) != 0;
+            boolean compressed = (b1 & 0x40) != 0;
+            int opcode = b1 & 0x0F;
+            
+            switch (opcode) {
+                case 0x1: // text
+                    if (fin) {
+                        dispatch(payload, compressed);
+                    } else {
+                        fragments = new ByteArrayOutputStream();
+                        fragments.write(payload, 0, payload.length);
+                        fragmentsCompressed = compressed;
+                    }
+                    break;
+                case 0x0: // continuation of a fragmented text message
+                    if (fragments == null) {
+                        break;
+                    }
+                    if (fragments.size() + payload.length > WebSocketServer.MAX_MESSAGE_SIZE) {
+                        closeTooBig();
+                        return;
+                    }
+                    fragments.write(payload, 0, payload.length);
+                    if (fin) {
+                        dispatch(fragments.toByteArray(), fragmentsCompressed);
+                        fragments = null;
+                    }
+                    break;
+                case 0x8: // close
+                    enqueue(CLOSE_FRAME);
+                    close();
+                    break;
+                case 0x9: // ping - keeps idle connections alive behind proxies
+                    enqueue(WebSocketServer.encodeFrame(0xA, payload));
+                    break;
+                default:
+                    // Binary and pong frames are ignored, as in the blocking transport
+                    break;
+            }
+        }
+        
+        /**
+         * Decode a complete text message and queue it for a worker
+         */
+        private void dispatch(byte[] payload, boolean compressed) {
+            String message;
+            if (!compressed) {
+                message = new String(payload, StandardCharsets.UTF_8);
+            } else if (deflate == null) {
+                // RSV1 without the extension is a protocol error
+                closeNow();
+                return;
+            } else {
+                try {
+                    message = deflate.inflate(payload, WebSocketServer.MAX_MESSAGE_SIZE);
+                } catch (IOException e) {
+                    closeNow();
+                    return;
+                }
+            }
+            inbox.add(message);
+            if (draining.compareAndSet(false, true)) {
+                submit(this::drainInbox);
+            }
+        }
+        
+        private void drainInbox() {
+            do {
+                String message;
+                while ((message = inbox.poll()) != null) {
+                    try {
+                        WebSocketServer.onTextMessage(this, pasteId, message);
+                    } catch (RuntimeException e) {
+                        ServerLogger.logError("Failed to handle WebSocket message for " + pasteId, e);
+                    }
+                }
+                draining.set(false);
+            } while (!inbox.isEmpty() && draining.compareAndSet(false, true));
+        }
+        
+        private void submit(Runnable task) {
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                closeNow();
+            }
+        }
+        
+        /**
+         * Switch the channel back to blocking mode and run the regular HTTP path on a worker
+         */
+        void handOff() {
+            try {
+                channel.configureBlocking(true);
+                Socket socket = channel.socket();
+                
+                byte[] prefix = new byte[pending != null ? pending.remaining() : 0];
+                if (pending != null) {
+                    pending.get(prefix);
+                    pending = null;
+                }
+                InputStream in = new SequenceInputStream(new ByteArrayInputStream(prefix), socket.getInputStream());
+                workers.execute(() -> MainServer.handleConnection(socket, in, this::park, requestsServed));
+            } catch (IOException | RejectedExecutionException e) {
+                closeQuietly(channel);
+            }
+        }
+        
+        /**
+         * Idle keep-alive connection: return it to this loop instead of holding a worker
+         */
+        private boolean park(Socket socket, int served) {
+            try {
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                return false;
+            }
+            loop.register(channel, served);
+            return true;
+        }
+        
+        /**
+         * Queue bytes for the loop to write
+         * @return false if the peer is too far behind; the connection is closed
+         */
+        private boolean enqueue(byte[] data) {
+            if (!WebSocketServer.reserveQueued(queuedBytes, data.length)) {
+                ServerLogger.warn("WebSocket dropped as slow consumer: " + remoteAddress);
+                closeNow();
+                return false;
+            }
+            outbound.add(ByteBuffer.wrap(data));
+            if (loop.inLoop()) {
+                flushQuietly();
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    flushQuietly();
+                });
+            }
+            return true;
+        }
+        
+        private void flushQuietly() {
+            try {
+                flush();
+            } catch (IOException | CancelledKeyException e) {
+                closeNow();
+            }
+        }
+        
+        /**
+         * Write queued buffers until the socket would block; runs on the loop thread only
+         */
+        void flush() throws IOException {
+            if (closed.get()) {
+                return;
+            }
+            ByteBuffer head;
+            while ((head = outbound.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+                queuedBytes.addAndGet(-head.capacity());
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterFlush) {
+                closeNow();
+            }
+        }
+        
+        void closeNow() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            key.cancel();
+            closeQuietly(channel);
+            outbound.clear();
+            pending = null;
+            
+            String id = pasteId;
+            if (id != null) {
+                submit(() -> WebSocketServer.onClose(this, id));
+            }
+        }
+        
+        @Override
+        public void sendRaw(byte[] data) throws IOException {
+            if (closed.get() || closeAfterFlush) {
+                throw new IOException("Connection closed");
+            }
+            if (!enqueue(data)) {
+                throw new IOException("Outbound queue full");
+            }
+        }
+        
+        @Override
+        public void sendText(String message) throws IOException {
+            sendRaw(WebSocketServer.textMessage(message).frameFor(this));
+        }
+        
+        @Override
+        public PerMessageDeflate getDeflate() {
+            return deflate;
+        }
+        
+        @Override
+        public void setDeflate(PerMessageDeflate deflate) {
+            this.deflate = deflate;
+        }
+        
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return !closed.get() && !closeAfterFlush;
+        }
+        
+        @Override
+        public void close() {
+            closeAfterFlush = true;
+            if (loop.inLoop()) {
+                flushQuietly();
+            } else {
+                loop.execute(this::flushQuietly);
+            }
+        }
+    }
+}
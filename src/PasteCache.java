@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PasteCache - Bounded, size-aware LRU cache of paste text with write-behind
+ * Updates land in memory and a background writer persists them on a fixed
+ * interval, or sooner once enough dirty bytes pile up. Dirty entries are
+ * never evicted before they have been written.
+ */
+public class PasteCache {
+    // Rough per-entry cost of the map node, entry object and key
+    private static final long ENTRY_OVERHEAD = 96;
+    
+    /**
+     * Persists one paste; called from the flusher thread
+     */
+    interface Writer {
+        void write(String id, String text) throws IOException;
+    }
+    
+    private static final class Entry {
+        final String text;
+        final long size;
+        boolean dirty;
+        
+        Entry(String text, boolean dirty) {
+            this.text = text;
+            this.size = ENTRY_OVERHEAD + 2L * text.length();
+            this.dirty = dirty;
+        }
+    }
+    
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    // Serializes flushes so two writers never race on the same file
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+    private final ScheduledExecutorService flusher;
+    private final Writer writer;
+    private final long maxBytes;
+    private final long flushDirtyBytes;
+    
+    private long totalBytes = 0;
+    private long dirtyBytes = 0;
+    
+    private static final Metrics.Counter hits = Metrics.counter("paste_cache_hits_total",
+        "Paste reads served from the cache", "");
+    private static final Metrics.Counter misses = Metrics.counter("paste_cache_misses_total",
+        "Paste reads that missed the cache", "");
+    
+    public PasteCache(long maxBytes, long flushDirtyBytes, long flushIntervalMs, Writer writer) {
+        this.maxBytes = maxBytes;
+        this.flushDirtyBytes = flushDirtyBytes;
+        this.writer = writer;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "paste-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Cached text for a paste, or null on a miss
+     */
+    public String get(String id) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(id);
+            (entry != null ? hits : misses).increment();
+            return entry != null ? entry.text : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Estimated memory held by cached pastes, in bytes
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return totalBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean contains(String id) {
+        lock.lock();
+        try {
+            return entries.containsKey(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Cache text just read from disk; never replaces a newer in-memory version
+     */
+    public void putClean(String id, String text) {
+        boolean overBudget;
+        lock.lock();
+        try {
+            if (entries.containsKey(id)) {
+                return;
+            }
+            Entry entry = new Entry(text, false);
+            entries.put(id, entry);
+            totalBytes += entry.size;
+            overBudget = evict();
+        } finally {
+            lock.unlock();
+        }
+        if (overBudget) {
+            requestFlush();
+        }
+    }
+    
+    /**
+     * Absorb a write in memory; it reaches disk on the next flush
+     */
+    public void putDirty(String id, String text) {
+        boolean flushNow;
+        lock.lock();
+        try {
+            Entry entry = new Entry(text, true);
+            Entry previous = entries.put(id, entry);
+            if (previous != null) {
+                totalBytes -= previous.size;
+                if (previous.dirty) {
+                    dirtyBytes -= previous.size;
+                    // Superseded: a flush already writing it must not count it again
+                    previous.dirty = false;
+                }
+            }
+            totalBytes += entry.size;
+            dirtyBytes += entry.size;
+            flushNow = evict() || dirtyBytes >= flushDirtyBytes;
+        } finally {
+            lock.unlock();
+        }
+        if (flushNow) {
+            requestFlush();
+        }
+    }
+    
+    /**
+     * Drop clean entries, least recently used first, until back under budget
+     * Caller holds the lock
+     * @return true if only dirty entries are left over budget and need flushing
+     */
+    private boolean evict() {
+        if (totalBytes <= maxBytes) {
+            return false;
+        }
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next();
+            if (!entry.dirty) {
+                it.remove();
+                totalBytes -= entry.size;
+            }
+        }
+        // Only dirty entries left: they must be written out before they can go
+        return totalBytes > maxBytes;
+    }
+    
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flushQuietly);
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false);
+            }
+        }
+    }
+    
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            ServerLogger.logError("Paste cache flush failed", e);
+        }
+    }
+    
+    /**
+     * Write every dirty entry to disk; failed writes stay dirty and are retried
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            flushRequested.set(false);
+            
+            List<Map.Entry<String, Entry>> dirty = new ArrayList<>();
+            lock.lock();
+            try {
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    if (e.getValue().dirty) {
+                        dirty.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            
+            for (Map.Entry<String, Entry> e : dirty) {
+                Entry written = e.getValue();
+                try {
+                    writer.write(e.getKey(), written.text);
+                } catch (IOException ex) {
+                    ServerLogger.logError("Failed to flush paste: " + e.getKey(), ex);
+                    continue;
+                }
+                
+                lock.lock();
+                try {
+                    // Still dirty unless a newer write replaced it while on disk. No map lookup:
+                    // in an access-ordered map it would count as a use and skew the LRU order
+                    if (written.dirty) {
+                        written.dirty = false;
+                        dirtyBytes -= written.size;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            
+            lock.lock();
+            try {
+                evict();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+    
+    /**
+     * Stop the background writer and persist everything still dirty
+     */
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * PasteDocument - Authoritative in-memory text of a paste with live editors
+ * Edits are splice operations (delete some characters at a position, then
+ * insert a string there) made against a sequence number. An operation based
+ * on an older sequence is transformed past the operations applied since, so
+ * clients only ever exchange deltas. Positions count UTF-16 units, as in both
+ * Java and JavaScript strings. Not thread-safe: its Room serializes access.
+ */
+public class PasteDocument {
+    // Operations kept for transforming late edits; older bases must resync
+    private static final int MAX_OP_LOG = 256;
+    
+    /**
+     * One applied splice and the sequence number it produced
+     */
+    static final class Op {
+        final long seq;
+        final int pos;
+        final int del;
+        final String ins;
+        
+        Op(long seq, int pos, int del, String ins) {
+            this.seq = seq;
+            this.pos = pos;
+            this.del = del;
+            this.ins = ins;
+        }
+        
+        void writeJson(JsonWriter json) throws IOException {
+            json.beginObject()
+                .field("type", "op")
+                .field("seq", seq)
+                .field("pos", pos)
+                .field("del", del)
+                .field("ins", ins)
+                .endObject();
+        }
+    }
+    
+    private final StringBuilder text;
+    private final ArrayDeque<Op> log = new ArrayDeque<>();
+    private long seq = 0;
+    
+    public PasteDocument(String initialText) {
+        this.text = new StringBuilder(initialText);
+    }
+    
+    /**
+     * Current text; caller holds the room lock
+     */
+    public String getText() {
+        return text.toString();
+    }
+    
+    public long getSeq() {
+        return seq;
+    }
+    
+    /**
+     * Apply a client splice made against document version base
+     * Caller holds the room lock
+     * @return the operation as applied, or null if the client must resync
+     */
+    public Op apply(long base, int pos, int del, String ins, int maxLength) {
+        if (base > seq || base < seq - log.size() || pos < 0 || del < 0) {
+            return null;
+        }
+        
+        // Transform past every operation the client had not seen
+        Iterator<Op> it = log.descendingIterator();
+        int skip = (int) (seq - base);
+        ArrayDeque<Op> missed = new ArrayDeque<>(skip);
+        while (skip-- > 0) {
+            missed.addFirst(it.next());
+        }
+        for (Op applied : missed) {
+            int start = mapStart(pos, applied);
+            int end = mapEnd(pos + del, applied);
+            pos = start;
+            del = Math.max(0, end - start);
+        }
+        
+        if (pos + del > text.length() || text.length() - del + ins.length() > maxLength) {
+            return null;
+        }
+        return record(pos, del, ins);
+    }
+    
+    /**
+     * Replace the whole text (HTTP PUT or a client without delta support)
+     * as the smallest single splice
+     * Caller holds the room lock
+     * @return the operation, or null if nothing changed
+     */
+    public Op replace(String newText) {
+        int oldLength = text.length();
+        int newLength = newText.length();
+        int prefix = 0;
+        int max = Math.min(oldLength, newLength);
+        while (prefix < max && text.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && text.charAt(oldLength - 1 - suffix) == newText.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+        
+        // Never split a surrogate pair across the splice boundary
+        if (prefix > 0 && Character.isHighSurrogate(newText.charAt(prefix - 1))) {
+            prefix--;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(newText.charAt(newLength - suffix))) {
+            suffix--;
+        }
+        
+        int del = oldLength - prefix - suffix;
+        String ins = newText.substring(prefix, newLength - suffix);
+        if (del == 0 && ins.isEmpty()) {
+            return null;
+        }
+        return record(prefix, del, ins);
+    }
+    
+    private Op record(int pos, int del, String ins) {
+        text.replace(pos, pos + del, ins);
+        Op op = new Op(++seq, pos, del, ins);
+        log.addLast(op);
+        if (log.size() > MAX_OP_LOG) {
+            log.removeFirst();
+        }
+        return op;
+    }
+    
+    /**
+     * Where the start of a range lands once an earlier operation is applied;
+     * text inserted by the earlier operation at the same spot stays in front
+     */
+    private static int mapStart(int x, Op applied) {
+        if (x < applied.pos) {
+            return x;
+        }
+        if (x >= applied.pos + applied.del) {
+            return x - applied.del + applied.ins.length();
+        }
+        return applied.pos + applied.ins.length();
+    }
+    
+    /**
+     * Where the end of a range lands; a range ending inside text the earlier
+     * operation deleted is cut short at that deletion
+     */
+    private static int mapEnd(int x, Op applied) {
+        if (x <= applied.pos) {
+            return x;
+        }
+        if (x >= applied.pos + applied.del) {
+            return x - applied.del + applied.ins.length();
+        }
+        return applied.pos;
+    }
+}
@@ -0,0 +1,32 @@
+import java.io.IOException;
+
+/**
+ * PasteStore - Where paste text is kept on disk
+ * Storage validates IDs and serializes access per paste before calling in, so
+ * implementations only need to be safe for different pastes at the same time.
+ * Selected at startup with PASTE_STORE (files or segments).
+ */
+public interface PasteStore {
+    
+    /**
+     * Prepare the store for use; called once before any other method
+     */
+    void open() throws IOException;
+    
+    /**
+     * Latest text of a paste, or null if it was never written
+     */
+    String read(String id) throws IOException;
+    
+    /**
+     * Replace a paste's text
+     */
+    void write(String id, String text) throws IOException;
+    
+    boolean exists(String id);
+    
+    /**
+     * Make every write durable and release files; called once on shutdown
+     */
+    void close();
+}
@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PerMessageDeflate - WebSocket compression (RFC 7692) agreed with one client
+ * Each message is a raw DEFLATE stream ended by a sync flush, with the final
+ * 00 00 FF FF left off. Without context takeover a message is compressed on
+ * its own, so the same compressed frame suits every such client and the
+ * deflaters and inflaters come from a pool. With context takeover, which
+ * WS_DEFLATE_CONTEXT_TAKEOVER lets clients have, each side keeps its window
+ * between messages: better ratios for the cost of a deflater or inflater
+ * (about 300 KB or 40 KB of native memory) held per connection.
+ * Messages shorter than MIN_SIZE go out uncompressed, which the RFC allows.
+ */
+final class PerMessageDeflate {
+    
+    static final String EXTENSION = "permessage-deflate";
+    
+    // Short messages such as user counts and keystroke ops barely shrink
+    static final int MIN_SIZE = 128;
+    
+    private static final boolean ENABLED = MainServer.getEnvInt("WS_DEFLATE", 1) != 0;
+    private static final boolean CONTEXT_TAKEOVER = MainServer.getEnvInt("WS_DEFLATE_CONTEXT_TAKEOVER", 0) != 0;
+    
+    // Appended to a received message so the inflater sees the end of its sync flush
+    private static final byte[] TAIL = { 0x00, 0x00, (byte) 0xFF, (byte) 0xFF };
+    
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(16);
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(16);
+    
+    private static final Metrics.Counter bytesIn = Metrics.counter("paste_websocket_deflate_bytes_total",
+        "WebSocket message bytes before and after permessage-deflate", "stage=\"in\"");
+    private static final Metrics.Counter bytesOut = Metrics.counter("paste_websocket_deflate_bytes_total",
+        "WebSocket message bytes before and after permessage-deflate", "stage=\"out\"");
+    
+    final boolean serverNoContextTakeover;
+    final boolean clientNoContextTakeover;
+    
+    // Own compression state, kept between messages; guarded by lock and created on first use
+    private final ReentrantLock lock = new ReentrantLock();
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean released = false;
+    
+    private PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover) {
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+    }
+    
+    /**
+     * Accept the first permessage-deflate offer in a Sec-WebSocket-Extensions header we can honor
+     * @return the agreed settings, or null to go without compression
+     */
+    static PerMessageDeflate negotiate(String header) {
+        if (!ENABLED || header == null) {
+            return null;
+        }
+        for (String offer : header.split(",")) {
+            String[] params = offer.split(";");
+            if (!params[0].trim().equalsIgnoreCase(EXTENSION)) {
+                continue;
+            }
+            boolean serverNoTakeover = false;
+            boolean clientNoTakeover = false;
+            boolean acceptable = true;
+            boolean[] seen = new boolean[4];
+            for (int i = 1; i < params.length && acceptable; i++) {
+                String param = params[i].trim();
+                int eq = param.indexOf('=');
+                String name = (eq < 0 ? param : param.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+                String value = eq < 0 ? null : unquote(param.substring(eq + 1).trim());
+                int index;
+                switch (name) {
+                    case "server_no_context_takeover":
+                        index = 0;
+                        serverNoTakeover = true;
+                        acceptable = value == null;
+                        break;
+                    case "client_no_context_takeover":
+                        index = 1;
+                        clientNoTakeover = true;
+                        acceptable = value == null;
+                        break;
+                    case "server_max_window_bits":
+                        // Deflater always uses a 32 KB window, so a smaller one cannot be promised
+                        index = 2;
+                        acceptable = "15".equals(value);
+                        break;
+                    case "client_max_window_bits":
+                        // Only says the client could use a smaller window; Inflater reads any size
+                        index = 3;
+                        acceptable = value == null || isWindowBits(value);
+                        break;
+                    default:
+                        index = -1;
+                        acceptable = false;
+                        break;
+                }
+                if (index >= 0) {
+                    acceptable &= !seen[index];
+                    seen[index] = true;
+                }
+            }
+            if (acceptable) {
+                return new PerMessageDeflate(serverNoTakeover || !CONTEXT_TAKEOVER, clientNoTakeover || !CONTEXT_TAKEOVER);
+            }
+        }
+        return null;
+    }
+    
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+    
+    private static boolean isWindowBits(String value) {
+        return value.equals("8") || value.equals("9")
+            || (value.length() == 2 && value.charAt(0) == '1' && value.charAt(1) >= '0' && value.charAt(1) <= '5');
+    }
+    
+    /**
+     * Value of the Sec-WebSocket-Extensions response header
+     */
+    String responseHeader() {
+        return EXTENSION
+            + (serverNoContextTakeover ? "; server_no_context_takeover" : "")
+            + (clientNoContextTakeover ? "; client_no_context_takeover" : "");
+    }
+    
+    /**
+     * Whether this client takes the shared frames built by deflateShared()
+     */
+    boolean sharesFrames() {
+        return serverNoContextTakeover;
+    }
+    
+    /**
+     * Compressed text frame for every client without server context takeover
+     */
+    static byte[] deflateShared(ByteBuffer payload) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            return WebSocketServer.encodeFrame(0x1, true, deflate(deflater, payload));
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+    
+    /**
+     * Compressed text frame for this client only, continuing its compression context
+     * Frames must be queued in the order they are built; callers hold the room lock.
+     */
+    byte[] deflateFrame(ByteBuffer payload) throws IOException {
+        lock.lock();
+        try {
+            if (released) {
+                throw new IOException("Connection closed");
+            }
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+            return WebSocketServer.encodeFrame(0x1, true, deflate(deflater, payload));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private static ByteBuffer deflate(Deflater deflater, ByteBuffer payload) {
+        int inputLength = payload.remaining();
+        deflater.setInput(payload);
+        byte[] out = new byte[Math.max(64, inputLength / 2)];
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+            // A sync flush that leaves space in the buffer has written everything
+            if (length < out.length) {
+                break;
+            }
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        // Every sync flush ends with an empty stored block; the receiver adds it back
+        length -= TAIL.length;
+        bytesIn.add(inputLength);
+        bytesOut.add(length);
+        return ByteBuffer.wrap(out, 0, length);
+    }
+    
+    /**
+     * Decompress a message received with RSV1 set
+     * @throws IOException if the data is corrupt or inflates past maxSize bytes
+     */
+    String inflate(byte[] payload, long maxSize) throws IOException {
+        lock.lock();
+        Inflater shared = null;
+        try {
+            if (released) {
+                throw new IOException("Connection closed");
+            }
+            Inflater target;
+            if (clientNoContextTakeover) {
+                shared = INFLATERS.poll();
+                target = shared != null ? shared : (shared = new Inflater(true));
+            } else {
+                if (inflater == null) {
+                    inflater = new Inflater(true);
+                }
+                target = inflater;
+            }
+            byte[] input = Arrays.copyOf(payload, payload.length + TAIL.length);
+            System.arraycopy(TAIL, 0, input, payload.length, TAIL.length);
+            target.setInput(input);
+            
+            // One byte past the limit shows a message is too large
+            int limit = (int) Math.min(maxSize, Integer.MAX_VALUE - 16) + 1;
+            byte[] out = new byte[(int) Math.min(limit, Math.max(256, payload.length * 4L))];
+            int length = 0;
+            while (true) {
+                int read = target.inflate(out, length, out.length - length);
+                length += read;
+                if (length > maxSize) {
+                    throw new IOException("Inflated message too large");
+                }
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, (int) Math.min(limit, out.length * 2L));
+                } else if (read == 0 && (target.needsInput() || target.finished() || target.needsDictionary())) {
+                    break;
+                }
+            }
+            return new String(out, 0, length, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed message", e);
+        } finally {
+            if (shared != null) {
+                shared.reset();
+                if (!INFLATERS.offer(shared)) {
+                    shared.end();
+                }
+            }
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Free this connection's own compression state once it has closed
+     */
+    void release() {
+        lock.lock();
+        try {
+            released = true;
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
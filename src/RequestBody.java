@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * RequestBody - A request body read from the connection only when a handler asks
+ * Handlers take the body as text or as a single form field, with a character
+ * limit checked while it streams in, so an oversized upload is refused after at
+ * most that many characters instead of being buffered whole. Whatever a handler
+ * leaves unread is skipped before the next request on the connection.
+ * Content-Length is counted in bytes; the bytes are decoded as UTF-8 as they
+ * are taken, a character split across two reads included.
+ */
+public class RequestBody {
+    // Unread bytes worth skipping to keep a connection alive; more than this and it is closed
+    private static final long MAX_SKIP_BYTES = 64 * 1024;
+    private static final Metrics.Counter bytesReceived = Metrics.counter("paste_http_request_body_bytes_total",
+        "HTTP request body bytes read", "");
+    
+    private final HttpInput in;
+    private final long length;
+    private long bytesRead = 0;
+    private boolean tooLarge = false;
+    
+    // Bytes read but not yet decoded (write mode), characters decoded but not yet taken (read mode)
+    private final ByteBuffer bytes;
+    private final CharBuffer chars;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private boolean decoded = false;
+    
+    RequestBody(HttpInput in, long length) {
+        this.in = in;
+        this.length = length;
+        int size = (int) Math.max(16, Math.min(length, 8192));
+        this.bytes = ByteBuffer.allocate(size);
+        this.chars = CharBuffer.allocate(size);
+        this.chars.flip();
+    }
+    
+    /**
+     * Declared Content-Length in bytes
+     */
+    public long length() {
+        return length;
+    }
+    
+    /**
+     * Whether the last read stopped at its character limit
+     */
+    public boolean isTooLarge() {
+        return tooLarge;
+    }
+    
+    /**
+     * The whole body as text, or null if it is longer than maxChars
+     */
+    public String text(int maxChars) throws IOException {
+        StringBuilder text = new StringBuilder((int) Math.min(length, 64 * 1024));
+        int c;
+        while ((c = next()) >= 0) {
+            if (text.length() == maxChars) {
+                return refuse();
+            }
+            text.append((char) c);
+        }
+        return text.toString();
+    }
+    
+    /**
+     * Decoded value of the first name=value pair of a urlencoded form, "" if the
+     * field is missing, or null if the value is longer than maxChars
+     */
+    public String formField(String name, int maxChars) throws IOException {
+        StringBuilder key = new StringBuilder();
+        boolean inValue = false;
+        int c;
+        while ((c = next()) >= 0) {
+            if (!inValue) {
+                if (c == '=') {
+                    if (key.toString().equals(name)) {
+                        return decodeValue(maxChars);
+                    }
+                    inValue = true;
+                } else if (c == '&') {
+                    key.setLength(0);
+                } else if (key.length() <= name.length()) {
+                    key.append((char) c);
+                }
+            } else if (c == '&') {
+                // Skip other fields' values
+                inValue = false;
+                key.setLength(0);
+            }
+        }
+        return "";
+    }
+    
+    private String decodeValue(int maxChars) throws IOException {
+        UrlDecoder value = new UrlDecoder((int) Math.min(length, 64 * 1024));
+        int c;
+        while ((c = next()) >= 0 && c != '&') {
+            value.append((char) c);
+            if (value.length() > maxChars) {
+                return refuse();
+            }
+        }
+        String decoded = value.finish();
+        return decoded.length() > maxChars ? refuse() : decoded;
+    }
+    
+    private String refuse() {
+        tooLarge = true;
+        // The rest is never read, so the connection cannot carry another request
+        HttpServer.closeAfterResponse();
+        return null;
+    }
+    
+    /**
+     * Skip the unread rest of the body
+     * @return false if too much was left and the connection should be closed instead
+     */
+    boolean skipRemaining() throws IOException {
+        if (tooLarge || length - bytesRead > MAX_SKIP_BYTES) {
+            return false;
+        }
+        byte[] scratch = new byte[(int) Math.min(length - bytesRead, 8192)];
+        while (bytesRead < length) {
+            int read = in.read(scratch, 0, (int) Math.min(scratch.length, length - bytesRead));
+            if (read == -1) {
+                throw new EOFException("Request body ended early");
+            }
+            bytesRead += read;
+            bytesReceived.add(read);
+        }
+        return true;
+    }
+    
+    /**
+     * Next body character, or -1 once all Content-Length bytes are decoded.
+     * Reads never go past Content-Length, which would swallow the next pipelined request.
+     */
+    private int next() throws IOException {
+        while (!chars.hasRemaining()) {
+            if (decoded) {
+                return -1;
+            }
+            long remaining = length - bytesRead;
+            if (remaining > 0) {
+                int read = in.read(bytes.array(), bytes.position(), (int) Math.min(bytes.remaining(), remaining));
+                if (read == -1) {
+                    throw new EOFException("Request body ended early");
+                }
+                bytes.position(bytes.position() + read);
+                bytesRead += read;
+                bytesReceived.add(read);
+            }
+            
+            boolean end = bytesRead == length;
+            bytes.flip();
+            chars.clear();
+            decoder.decode(bytes, chars, end);
+            if (end && !bytes.hasRemaining()) {
+                decoder.flush(chars);
+                decoded = true;
+            }
+            bytes.compact();
+            chars.flip();
+        }
+        return chars.get();
+    }
+}
@@ -1,6 +1,9 @@
 import java.io.*;
 import java.net.*;
-import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 /**
@@ -8,74 +11,147 @@ import java.util.*;
  * Implements the paste service endpoints
  */
 public class RequestHandler {
+    // Paste status injected into view.html
+    private static final byte[] STATUS_DELETED = statusScript(true);
+    private static final byte[] STATUS_ACTIVE = statusScript(false);
     
-    public static void handleRequest(Socket socket, String method, String path, String body) throws IOException {
+    // Static assets by exact path: file in web/ and content type.
+    // Paste routes are told apart by prefix and Storage.isValidId, so no regex runs per request.
+    private static final Map<String, String[]> STATIC_ROUTES = new HashMap<>();
+    static {
+        STATIC_ROUTES.put("/", new String[] { "index.html", "text/html" });
+        STATIC_ROUTES.put("/index.html", new String[] { "index.html", "text/html" });
+        STATIC_ROUTES.put("/style.css", new String[] { "style.css", "text/css" });
+        STATIC_ROUTES.put("/app.js", new String[] { "app.js", "application/javascript" });
+        STATIC_ROUTES.put("/view.html", new String[] { "view.html", "text/html" });
+        STATIC_ROUTES.put("/history.html", new String[] { "history.html", "text/html" });
+        STATIC_ROUTES.put("/history.js", new String[] { "history.js", "application/javascript" });
+        STATIC_ROUTES.put("/about", new String[] { "about.html", "text/html" });
+        STATIC_ROUTES.put("/about.html", new String[] { "about.html", "text/html" });
+        STATIC_ROUTES.put("/debug.html", new String[] { "debug.html", "text/html" });
+    }
+    
+    // Required as "Authorization: Bearer <token>" by /api/admin/ and /metrics; without it they are disabled
+    private static final String ADMIN_TOKEN = System.getenv("ADMIN_TOKEN");
+    
+    // Lets local requests use /api/admin/ (not /metrics) without the token; off by default, as a
+    // reverse proxy on this host makes every client look local
+    private static final boolean ADMIN_TRUST_LOOPBACK = MainServer.getEnvInt("ADMIN_TRUST_LOOPBACK", 0) != 0;
+    
+    // History listing page sizes
+    private static final int DEFAULT_HISTORY_PAGE = 100;
+    private static final int MAX_HISTORY_PAGE = 500;
+    
+    /**
+     * Route names for metrics; each route has its own latency histogram
+     */
+    private enum Route {
+        OPTIONS, HEALTH, METRICS, STATIC, CREATE, ADMIN, HISTORY, HISTORY_ID, DELETE, PASTE_JSON, VIEW, UPDATE, NOT_FOUND;
+        
+        final Metrics.Histogram latency = Metrics.timer("paste_http_request_duration_seconds",
+            "Time to handle an HTTP request, by route", "route=\"" + name().toLowerCase(Locale.ROOT) + "\"");
+    }
+    
+    /**
+     * Route one request. path has the query string cut off; query is what followed
+     * the '?', or "" when there was none.
+     */
+    public static void handleRequest(Socket socket, String method, String path, String query,
+                                     Map<String, String> headers, RequestBody body) throws IOException {
+        long start = System.nanoTime();
+        Route route = dispatch(socket, method, path, query, headers, body);
+        route.latency.recordSince(start);
+    }
+    
+    /**
+     * @return the route that handled the request
+     */
+    private static Route dispatch(Socket socket, String method, String path, String query,
+                                  Map<String, String> headers, RequestBody body) throws IOException {
         // Handle CORS preflight requests
         if (method.equals("OPTIONS")) {
             handleOptions(socket);
-            return;
+            return Route.OPTIONS;
         }
         
         // Health check endpoints (for Render compatibility)
         if ((path.equals("/health") || path.equals("/api/health")) && method.equals("GET")) {
             handleHealthCheck(socket);
-            return;
+            return Route.HEALTH;
+        }
+        if (path.equals("/metrics") && method.equals("GET")) {
+            // Token only: ADMIN_TRUST_LOOPBACK covers the admin endpoints, not metrics
+            if (!hasAdminToken()) {
+                HttpServer.sendResponse(socket, 404, "text/plain", "Not Found");
+            } else if (hasAdminToken(headers)) {
+                HttpServer.sendBytes(socket, 200, "text/plain; version=0.0.4; charset=UTF-8", "Cache-Control: no-store\r\n",
+                    Metrics.scrape().getBytes(StandardCharsets.UTF_8));
+            } else {
+                HttpServer.sendResponse(socket, 403, "text/plain", "Forbidden");
+            }
+            return Route.METRICS;
         }
         
         // Serve static files
-        if (path.equals("/") || path.equals("/index.html")) {
-            serveFile(socket, "web/index.html", "text/html");
-        } else if (path.equals("/style.css")) {
-            serveFile(socket, "web/style.css", "text/css");
-        } else if (path.equals("/app.js")) {
-            serveFile(socket, "web/app.js", "application/javascript");
-        } else if (path.equals("/view.html")) {
-            serveFile(socket, "web/view.html", "text/html");
-        } else if (path.equals("/history.html")) {
-            serveFile(socket, "web/history.html", "text/html");
-        } else if (path.equals("/history.js")) {
-            serveFile(socket, "web/history.js", "application/javascript");
-        } else if (path.equals("/about") || path.equals("/about.html")) {
-            serveFile(socket, "web/about.html", "text/html");
-        } else if (path.equals("/debug.html")) {
-            serveFile(socket, "web/debug.html", "text/html");
+        String[] asset = STATIC_ROUTES.get(path);
+        if (asset != null) {
+            StaticFiles.serve(socket, asset[0], asset[1], headers);
+            return Route.STATIC;
         }
         // Create paste endpoint
         else if (path.equals("/create") && method.equals("POST")) {
             handleCreate(socket, body);
+            return Route.CREATE;
         }
-        // History API endpoints
-        else if (path.equals("/api/history") && method.equals("GET")) {
-            handleGetHistory(socket);
-        }
-        else if (path.matches("^/api/history/\\d{5}$")) {
-            String id = path.substring(13); // Remove "/api/history/"
-            if (method.equals("GET")) {
-                handleGetHistoryById(socket, id);
+        // Admin endpoints
+        else if (path.equals("/api/admin/log-level")) {
+            if (!hasAdminToken() && !ADMIN_TRUST_LOOPBACK) {
+                HttpServer.sendResponse(socket, 404, "text/plain", "Not Found");
+            } else if (!isAdmin(socket, headers)) {
+                HttpServer.sendResponse(socket, 403, "text/plain", "Forbidden");
+            } else if (method.equals("GET") || method.equals("PUT") || method.equals("POST")) {
+                handleLogLevel(socket, method, query, body);
             } else {
                 HttpServer.sendResponse(socket, 400, "text/plain", "Method not allowed");
             }
+            return Route.ADMIN;
         }
-        else if (path.matches("^/api/history/\\d{5}/delete$") && method.equals("POST")) {
-            String id = path.substring(13, 18); // Extract ID from "/api/history/00001/delete"
-            handleDeletePaste(socket, id);
+        // History API endpoints
+        else if (path.equals("/api/history") && method.equals("GET")) {
+            handleGetHistory(socket, query);
+            return Route.HISTORY;
+        }
+        else if (path.startsWith("/api/history/")) {
+            String rest = path.substring(13); // Remove "/api/history/"
+            if (Storage.isValidId(rest)) {
+                if (method.equals("GET")) {
+                    handleGetHistoryById(socket, rest);
+                } else {
+                    HttpServer.sendResponse(socket, 400, "text/plain", "Method not allowed");
+                }
+                return Route.HISTORY_ID;
+            } else if (rest.endsWith("/delete") && method.equals("POST")
+                    && Storage.isValidId(rest.substring(0, rest.length() - 7))) {
+                handleDeletePaste(socket, rest.substring(0, rest.length() - 7)); // "00001/delete"
+                return Route.DELETE;
+            }
         }
         // API endpoint for getting paste data as JSON
-        else if (path.matches("^/api/\\d{5}$")) {
+        else if (path.startsWith("/api/") && Storage.isValidId(path.substring(5))) {
             String id = path.substring(5); // Remove "/api/"
             if (method.equals("GET")) {
                 handleViewJson(socket, id);
             } else {
                 HttpServer.sendResponse(socket, 400, "text/plain", "Method not allowed");
             }
+            return Route.PASTE_JSON;
         }
         // View/Edit paste endpoint - serve HTML page
-        else if (path.matches("^/\\d{5}$")) {
+        else if (path.startsWith("/") && Storage.isValidId(path.substring(1))) {
             String id = path.substring(1);
             if (method.equals("GET")) {
-                // Check if paste exists
-                String paste = Storage.getPaste(id);
-                if (paste == null) {
+                // Existence only: the paste text is not needed to render the page
+                if (!Storage.pasteExists(id)) {
                     HttpServer.sendResponse(socket, 404, "text/plain", "Paste not found");
                 } else {
                     // Serve the view.html page with deleted status
@@ -83,60 +159,49 @@ public class RequestHandler {
                 }
             } else if (method.equals("PUT")) {
                 handleUpdate(socket, id, body);
+                return Route.UPDATE;
             } else {
                 HttpServer.sendResponse(socket, 400, "text/plain", "Method not allowed");
             }
-        }
-        // 404 for unknown paths
-        else {
-            HttpServer.sendResponse(socket, 404, "text/plain", "Not Found");
+            return Route.VIEW;
         }
         
-        socket.close();
+        // 404 for unknown paths
+        HttpServer.sendResponse(socket, 404, "text/plain", "Not Found");
+        return Route.NOT_FOUND;
     }
     
-    private static void serveFile(Socket socket, String filePath, String contentType) throws IOException {
-        try {
-            Path path = Paths.get(filePath);
-            String content = new String(Files.readAllBytes(path), "UTF-8");
-            HttpServer.sendResponse(socket, 200, contentType, content);
-        } catch (IOException e) {
-            HttpServer.sendResponse(socket, 404, "text/plain", "File not found");
-        }
-    }
     
     private static void serveViewWithStatus(Socket socket, String id) throws IOException {
+        byte[][] template;
         try {
-            Path path = Paths.get("web/view.html");
-            String content = new String(Files.readAllBytes(path), "UTF-8");
-            
-            // Check if paste is deleted
-            boolean deleted = StorageHistory.isDeleted(id);
-            
-            // Inject paste status before </head>
-            String statusScript = "<script>window.pasteStatus = {deleted: " + deleted + "};</script>";
-            content = content.replace("</head>", statusScript + "\n</head>");
-            
-            HttpServer.sendResponse(socket, 200, "text/html", content);
+            template = StaticFiles.getTemplate("view.html", "text/html", "</head>");
         } catch (IOException e) {
             HttpServer.sendResponse(socket, 404, "text/plain", "File not found");
+            return;
         }
+        
+        // Check if paste is deleted
+        boolean deleted = StorageHistory.isDeleted(id);
+        
+        // Paste status goes in just before </head>
+        HttpServer.sendBytes(socket, 200, "text/html; charset=UTF-8", "",
+            template[0], deleted ? STATUS_DELETED : STATUS_ACTIVE, template[1]);
     }
     
-    private static void handleCreate(Socket socket, String body) throws IOException {
-        // Parse form data to extract text parameter
-        String text = Utils.parseFormData(body);
+    private static void handleCreate(Socket socket, RequestBody body) throws IOException {
+        // Decode the text parameter as it arrives, stopping at the paste size limit
+        String text = body.formField("text", Storage.MAX_PASTE_SIZE);
         
-        // Validate input
-        if (text == null || text.trim().isEmpty()) {
-            HttpServer.sendResponse(socket, 400, "text/plain", "Empty paste content");
+        // Enforce paste size limit with HTTP 413
+        if (body.isTooLarge()) {
+            sendPayloadTooLarge(socket);
             return;
         }
         
-        // Enforce paste size limit with HTTP 413
-        if (text.length() > Storage.MAX_PASTE_SIZE) {
-            HttpServer.sendResponse(socket, 413, "text/plain", 
-                "Paste too large. Maximum size: " + (Storage.MAX_PASTE_SIZE / (1024 * 1024)) + " MB");
+        // Validate input
+        if (text == null || text.trim().isEmpty()) {
+            HttpServer.sendResponse(socket, 400, "text/plain", "Empty paste content");
             return;
         }
         
@@ -155,6 +220,14 @@ public class RequestHandler {
         HttpServer.sendRedirect(socket, "/" + id);
     }
     
+    /**
+     * 413 for a paste over Storage.MAX_PASTE_SIZE, sent as soon as that is known
+     */
+    static void sendPayloadTooLarge(Socket socket) throws IOException {
+        HttpServer.sendResponse(socket, 413, "text/plain",
+            "Paste too large. Maximum size: " + (Storage.MAX_PASTE_SIZE / (1024 * 1024)) + " MB");
+    }
+    
     private static void handleViewJson(Socket socket, String id) throws IOException {
         String paste = Storage.getPaste(id);
         
@@ -167,80 +240,159 @@ public class RequestHandler {
         boolean deleted = StorageHistory.isDeleted(id);
         
         // Return JSON with paste data and deleted status
-        String json = "{\"id\":\"" + id + "\",\"text\":" + Utils.toJsonString(paste) + ",\"deleted\":" + deleted + "}";
-        HttpServer.sendResponse(socket, 200, "application/json", json);
+        try (JsonWriter json = JsonWriter.to(
+                HttpServer.startStreamingResponse(socket, 200, "application/json; charset=UTF-8", ""))) {
+            json.beginObject()
+                .field("id", id)
+                .field("text", paste)
+                .field("deleted", deleted)
+                .endObject();
+        }
     }
     
-    private static void handleUpdate(Socket socket, String id, String body) throws IOException {
+    private static void handleUpdate(Socket socket, String id, RequestBody body) throws IOException {
         // Check if paste is deleted
         if (StorageHistory.isDeleted(id)) {
             HttpServer.sendResponse(socket, 410, "text/plain", "This paste has been deleted and cannot be edited");
             return;
         }
         
-        // Validate input
-        if (body == null || body.trim().isEmpty()) {
-            HttpServer.sendResponse(socket, 400, "text/plain", "Empty paste content");
+        // Read the new text, stopping at the paste size limit
+        String text = body.text(Storage.MAX_PASTE_SIZE);
+        
+        // Enforce paste size limit with HTTP 413
+        if (body.isTooLarge()) {
+            sendPayloadTooLarge(socket);
             return;
         }
         
-        // Enforce paste size limit with HTTP 413
-        if (body.length() > Storage.MAX_PASTE_SIZE) {
-            HttpServer.sendResponse(socket, 413, "text/plain", 
-                "Paste too large. Maximum size: " + (Storage.MAX_PASTE_SIZE / (1024 * 1024)) + " MB");
+        // Validate input
+        if (text == null || text.trim().isEmpty()) {
+            HttpServer.sendResponse(socket, 400, "text/plain", "Empty paste content");
             return;
         }
         
         // Get client IP
         String clientIp = socket.getInetAddress().getHostAddress();
         
-        // Update paste
-        boolean success = Storage.updatePaste(id, body, clientIp);
+        // Update paste and push the change to all WebSocket clients
+        boolean success = WebSocketServer.updatePaste(id, text, clientIp);
         
         if (success) {
-            // Broadcast update to all WebSocket clients
-            WebSocketServer.broadcast(id, body);
             HttpServer.sendResponse(socket, 200, "text/plain", "Updated");
         } else {
             HttpServer.sendResponse(socket, 404, "text/plain", "Paste not found");
         }
     }
     
-    private static void handleGetHistory(Socket socket) throws IOException {
+    /**
+     * GET /api/history?limit=&after=&action=&deleted=&ip=&since=&until=
+     * A JSON array of pastes, newest first. When the page is full, X-Next-Cursor
+     * carries the after= value for the next one.
+     */
+    private static void handleGetHistory(Socket socket, String query) throws IOException {
         String clientIp = socket.getInetAddress().getHostAddress();
-        ServerLogger.log("Incoming request for /api/history from " + clientIp);
+        ServerLogger.debug(() -> "Incoming request for /api/history from " + clientIp);
         
+        Map<String, String> params = Utils.parseQuery(query);
+        int limit;
+        String after = params.get("after");
+        StorageHistory.Filter filter = new StorageHistory.Filter();
         try {
-            List<Map<String, Object>> history = StorageHistory.readAll();
-            ServerLogger.log("Retrieved " + history.size() + " history entries");
-            String json = historyListToJson(history);
-            HttpServer.sendResponse(socket, 200, "application/json", json);
-        } catch (Exception e) {
+            limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : DEFAULT_HISTORY_PAGE;
+            if (limit < 1 || limit > MAX_HISTORY_PAGE) {
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_HISTORY_PAGE);
+            }
+            if (after != null && !Storage.isValidId(after)) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            filter.action = params.get("action");
+            if (params.containsKey("deleted")) {
+                filter.deleted = parseBoolean(params.get("deleted"));
+            }
+            filter.creatorIp = params.get("ip");
+            if (params.containsKey("since")) {
+                filter.since = parseTime(params.get("since"));
+            }
+            if (params.containsKey("until")) {
+                filter.until = parseTime(params.get("until"));
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            HttpServer.sendResponse(socket, 400, "text/plain", "Bad history query: " + e.getMessage());
+            return;
+        }
+        
+        List<HistoryRecord> page;
+        try {
+            page = StorageHistory.list(after, limit, filter);
+        } catch (IllegalArgumentException e) {
+            HttpServer.sendResponse(socket, 400, "text/plain", "Unknown cursor");
+            return;
+        } catch (IOException e) {
             ServerLogger.logError("Failed to retrieve history", e);
             HttpServer.sendResponse(socket, 500, "text/plain", "Internal server error");
+            return;
         }
+        int entries = page.size();
+        ServerLogger.debug(() -> "Retrieved " + entries + " history entries");
+        
+        String extraHeaders = "Cache-Control: no-store\r\n";
+        if (page.size() == limit) {
+            extraHeaders += "X-Next-Cursor: " + page.get(page.size() - 1).id + "\r\n"
+                + "Access-Control-Expose-Headers: X-Next-Cursor\r\n";
+        }
+        try (JsonWriter json = JsonWriter.to(
+                HttpServer.startStreamingResponse(socket, 200, "application/json; charset=UTF-8", extraHeaders))) {
+            json.beginArray();
+            for (HistoryRecord record : page) {
+                record.writeJson(json);
+            }
+            json.endArray();
+        }
+    }
+    
+    private static boolean parseBoolean(String value) {
+        if (value.equals("true")) return true;
+        if (value.equals("false")) return false;
+        throw new IllegalArgumentException("deleted must be true or false");
+    }
+    
+    /**
+     * An ISO-8601 instant such as 2025-01-01T00:00:00Z, or epoch milliseconds
+     */
+    private static long parseTime(String value) {
+        if (!value.isEmpty() && value.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(value);
+        }
+        return Instant.parse(value).toEpochMilli();
     }
     
     private static void handleGetHistoryById(Socket socket, String id) throws IOException {
         // Validate ID format
-        if (!id.matches("\\d{5}")) {
+        if (!Storage.isValidId(id)) {
             HttpServer.sendResponse(socket, 400, "text/plain", "Invalid ID format");
             return;
         }
         
-        List<Map<String, Object>> history = StorageHistory.readById(id);
+        List<HistoryRecord> history = StorageHistory.readById(id);
         if (history.isEmpty()) {
             HttpServer.sendResponse(socket, 404, "text/plain", "No history found for ID");
             return;
         }
         
-        String json = historyListToJson(history);
-        HttpServer.sendResponse(socket, 200, "application/json", json);
+        try (JsonWriter json = JsonWriter.to(
+                HttpServer.startStreamingResponse(socket, 200, "application/json; charset=UTF-8", ""))) {
+            json.beginArray();
+            for (HistoryRecord record : history) {
+                record.writeJson(json);
+            }
+            json.endArray();
+        }
     }
     
     private static void handleDeletePaste(Socket socket, String id) throws IOException {
         // Validate ID format
-        if (!id.matches("\\d{5}")) {
+        if (!Storage.isValidId(id)) {
             HttpServer.sendResponse(socket, 400, "text/plain", "Invalid ID format");
             return;
         }
@@ -251,49 +403,74 @@ public class RequestHandler {
         // Mark as deleted in history
         StorageHistory.markDelete(id, clientIp);
         
-        ServerLogger.log("Paste " + id + " marked as deleted by " + clientIp);
+        ServerLogger.log(() -> "Paste " + id + " marked as deleted by " + clientIp);
         HttpServer.sendResponse(socket, 200, "text/plain", "Deleted");
     }
     
-    private static String historyListToJson(List<Map<String, Object>> history) {
-        StringBuilder json = new StringBuilder();
-        json.append("[");
-        
-        for (int i = 0; i < history.size(); i++) {
-            if (i > 0) json.append(",");
-            json.append(historyEntryToJson(history.get(i)));
+    /**
+     * GET /api/admin/log-level shows the level; PUT or POST with ?level= (or the
+     * level as the body) changes it until the next restart
+     */
+    private static void handleLogLevel(Socket socket, String method, String query, RequestBody body)
+            throws IOException {
+        if (!method.equals("GET")) {
+            String name = Utils.parseQuery(query).get("level");
+            if (name == null) {
+                name = body.text(16);
+            }
+            ServerLogger.Level level;
+            try {
+                level = ServerLogger.Level.valueOf(name == null ? "" : name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                HttpServer.sendResponse(socket, 400, "text/plain", "Unknown level, expected DEBUG, INFO, WARN or ERROR");
+                return;
+            }
+            ServerLogger.setLevel(level);
+            ServerLogger.warn("Log level set to " + level + " by " + socket.getInetAddress().getHostAddress());
         }
-        
-        json.append("]");
-        return json.toString();
+        HttpServer.sendResponse(socket, 200, "application/json",
+            "{\"level\":\"" + ServerLogger.getLevel() + "\"}");
+    }
+    
+    /**
+     * Admin requests carry the ADMIN_TOKEN, or come from this host when ADMIN_TRUST_LOOPBACK is set
+     */
+    private static boolean isAdmin(Socket socket, Map<String, String> headers) {
+        if (ADMIN_TRUST_LOOPBACK && socket.getInetAddress().isLoopbackAddress()) {
+            return true;
+        }
+        return hasAdminToken(headers);
+    }
+    
+    private static boolean hasAdminToken() {
+        return ADMIN_TOKEN != null && !ADMIN_TOKEN.isEmpty();
+    }
+    
+    /**
+     * The request is sent as "Authorization: Bearer <token>" with the configured ADMIN_TOKEN
+     */
+    private static boolean hasAdminToken(Map<String, String> headers) {
+        String authorization = headers.get("authorization");
+        if (!hasAdminToken() || authorization == null || !authorization.startsWith("Bearer ")) {
+            return false;
+        }
+        return MessageDigest.isEqual(authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8),
+            ADMIN_TOKEN.getBytes(StandardCharsets.UTF_8));
     }
     
-    private static String historyEntryToJson(Map<String, Object> entry) {
-        StringBuilder json = new StringBuilder();
-        json.append("{");
-        json.append("\"id\":\"").append(entry.get("id")).append("\",");
-        json.append("\"timestamp\":\"").append(entry.get("timestamp")).append("\",");
-        json.append("\"creator_ip\":\"").append(entry.get("creator_ip")).append("\",");
-        json.append("\"version\":").append(entry.get("version")).append(",");
-        json.append("\"action\":\"").append(entry.get("action")).append("\",");
-        json.append("\"deleted\":").append(entry.get("deleted"));
-        if (entry.containsKey("note")) {
-            json.append(",\"note\":").append(Utils.toJsonString((String) entry.get("note")));
-        }
-        json.append("}");
-        return json.toString();
+    private static byte[] statusScript(boolean deleted) {
+        String script = "<script>window.pasteStatus = {deleted: " + deleted + "};</script>\n";
+        return script.getBytes(StandardCharsets.UTF_8);
     }
     
     // Handle CORS preflight OPTIONS requests
     private static void handleOptions(Socket socket) throws IOException {
         HttpServer.sendResponse(socket, 200, "text/plain", "");
-        socket.close();
     }
     
     // Health check endpoint
     private static void handleHealthCheck(Socket socket) throws IOException {
         String healthJson = "{\"status\":\"ok\",\"service\":\"paste-service\"}";
         HttpServer.sendResponse(socket, 200, "application/json", healthJson);
-        socket.close();
     }
 }
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Room - The live editing session of one paste
+ * Owns the paste's WebSocket members and its authoritative document. Every
+ * change to either, and every message sent to the members, happens under the
+ * room lock, so all members see the same messages in the same order and a
+ * frame is never queued on a connection while another thread queues one.
+ * WebSocketServer creates a room when the first client connects and drops it
+ * once the last one leaves; a closed room takes no members, and a client that
+ * finds one closed asks the registry for a new room. The room is registered
+ * empty and reads the paste on first use, so that read holds only this room's
+ * lock and never the registry's.
+ */
+final class Room {
+    
+    enum JoinResult { JOINED, FULL, CLOSED }
+    
+    final String id;
+    // Held while applying an operation and sending it, and while members change
+    final ReentrantLock lock = new ReentrantLock();
+    private final int maxMembers;
+    private final Set<WebSocketConnection> members = new LinkedHashSet<>();
+    private boolean closed = false;
+    // Read from storage by document(); guarded by lock
+    private PasteDocument document;
+    private boolean loaded = false;
+    
+    Room(String id, int maxMembers) {
+        this.id = id;
+        this.maxMembers = maxMembers;
+    }
+    
+    /**
+     * The paste being edited, read from storage on first use; caller holds the lock
+     * @return null for a paste that does not exist: clients may connect, but there is nothing to edit
+     */
+    PasteDocument document() {
+        if (!loaded) {
+            String content = Storage.getPaste(id);
+            document = content != null ? new PasteDocument(content) : null;
+            loaded = true;
+        }
+        return document;
+    }
+    
+    /**
+     * Add a connection and send it the current text, then the new user count to everyone
+     */
+    JoinResult join(WebSocketConnection connection) {
+        lock.lock();
+        try {
+            if (closed) {
+                return JoinResult.CLOSED;
+            }
+            if (members.size() >= maxMembers) {
+                return JoinResult.FULL;
+            }
+            PasteDocument document = document();
+            members.add(connection);
+            if (document != null) {
+                send(connection, WebSocketServer.snapshotMessage("init", document));
+            }
+            broadcast(WebSocketServer.userCountMessage(members.size()));
+            return JoinResult.JOINED;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Remove a connection; the last one out closes the room
+     * @return true if this closed the room
+     */
+    boolean leave(WebSocketConnection connection) {
+        lock.lock();
+        try {
+            if (!members.remove(connection)) {
+                return false;
+            }
+            if (members.isEmpty()) {
+                closed = true;
+                return true;
+            }
+            broadcast(WebSocketServer.userCountMessage(members.size()));
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Whether another member would be refused; only a hint, join() decides
+     */
+    boolean isFull() {
+        lock.lock();
+        try {
+            return members.size() >= maxMembers;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    int size() {
+        lock.lock();
+        try {
+            return members.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Queue one message on every member; caller holds the lock
+     * Members that agreed on the same compression share one frame.
+     * A member whose connection has failed is closed; it leaves when its close is handled.
+     * @return how many members it was queued on
+     */
+    int broadcast(WebSocketMessage message) {
+        int sent = 0;
+        for (WebSocketConnection member : members) {
+            if (send(member, message)) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+    
+    /**
+     * Queue one message on a single member; caller holds the lock
+     */
+    boolean send(WebSocketConnection connection, WebSocketMessage message) {
+        try {
+            connection.sendRaw(message.frameFor(connection));
+            return true;
+        } catch (IOException e) {
+            connection.close();
+            return false;
+        }
+    }
+}
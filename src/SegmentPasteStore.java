@@ -0,0 +1,420 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * SegmentPasteStore - Pastes packed into large append-only segment files
+ * Every write appends a record to the active segment (pastes-NNNNNN.seg) and
+ * points the paste's entry in an in-memory offset index at it. Once the active
+ * segment passes PASTE_SEGMENT_MB it is sealed and mapped read-only, so reads of
+ * older pastes are a copy out of the page cache with no file open or system call.
+ * A background compactor copies the records still current in mostly overwritten
+ * sealed segments into the active one and deletes those segments. The index is
+ * rebuilt by scanning the segments at startup; a torn record at the end of the
+ * active segment is cut off. Pastes never written here are read from the
+ * fallback store, so switching from JSON files needs no migration step.
+ *
+ * Record: int body length, int CRC32 of the body, then the body itself:
+ * short ID length, ID (ASCII), paste text (UTF-8).
+ */
+public class SegmentPasteStore implements PasteStore {
+    private static final Pattern SEGMENT_NAME = Pattern.compile("^pastes-(\\d{6})\\.seg$");
+    private static final int HEADER_BYTES = 8;
+    // Mapped buffers are int-indexed, so a sealed segment must stay below 2 GB
+    private static final long MAX_SEGMENT_BYTES = 1024L * 1024L * 1024L;
+    // Sealed segments with less than this share of current records are compacted
+    private static final double COMPACT_BELOW_LIVE = 0.5;
+    
+    private final Path dir;
+    private final long segmentMaxBytes;
+    private final PasteStore fallback;
+    
+    // Latest record of every paste written here
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    
+    // Segments by number, oldest first; the last one is the active segment.
+    // Appends, rolls and segment removal happen under appendLock.
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private Segment active;
+    
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "paste-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+    
+    /**
+     * One segment file. Only the active segment grows; sealed ones are read through their mapping.
+     */
+    private static final class Segment {
+        final int number;
+        final Path path;
+        final FileChannel channel;
+        // Bytes of records that are still the latest for their paste
+        final AtomicLong liveBytes = new AtomicLong();
+        volatile MappedByteBuffer mapped;
+        long size;
+        
+        Segment(int number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+        
+        byte[] read(long offset, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            MappedByteBuffer map = mapped;
+            if (map != null) {
+                // Duplicate so concurrent readers never share a position
+                ByteBuffer view = map.duplicate();
+                view.position((int) offset);
+                view.get(bytes);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new EOFException("Truncated record in " + path);
+                    }
+                }
+            }
+            return bytes;
+        }
+        
+        void seal() throws IOException {
+            channel.force(false);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+    
+    /**
+     * Where a paste's latest record body starts, and how long it is
+     */
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+        
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+        
+        long recordBytes() {
+            return HEADER_BYTES + length;
+        }
+    }
+    
+    public SegmentPasteStore(Path dir, long segmentMaxBytes, PasteStore fallback) {
+        this.dir = dir;
+        this.segmentMaxBytes = Math.min(segmentMaxBytes, MAX_SEGMENT_BYTES);
+        this.fallback = fallback;
+    }
+    
+    @Override
+    public void open() throws IOException {
+        if (fallback != null) {
+            fallback.open();
+        }
+        Files.createDirectories(dir);
+        
+        TreeMap<Integer, Path> found = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    found.put(Integer.parseInt(matcher.group(1)), path);
+                }
+            }
+        }
+        
+        appendLock.lock();
+        try {
+            // Scan oldest first so later records of a paste replace earlier ones
+            for (Map.Entry<Integer, Path> entry : found.entrySet()) {
+                boolean last = entry.getKey().equals(found.lastKey());
+                FileChannel channel = last
+                    ? FileChannel.open(entry.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(entry.getValue(), StandardOpenOption.READ);
+                Segment segment = new Segment(entry.getKey(), entry.getValue(), channel);
+                segment.size = channel.size();
+                segment.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+                long valid = scan(segment);
+                if (valid < segment.size) {
+                    if (last) {
+                        ServerLogger.warn("Paste segment " + segment.path + ": dropping torn record at byte " + valid);
+                        channel.truncate(valid);
+                    } else {
+                        ServerLogger.warn("Paste segment " + segment.path + ": corrupt record at byte " + valid
+                            + ", later records in this segment are ignored");
+                    }
+                }
+                segment.size = valid;
+                if (last) {
+                    // The active segment is read through its channel while it grows
+                    segment.mapped = null;
+                    active = segment;
+                } else if (valid < channel.size()) {
+                    segment.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, valid);
+                }
+                segments.put(segment.number, segment);
+            }
+            if (active == null) {
+                startSegment(1);
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        
+        ServerLogger.log("Paste store: " + index.size() + " paste(s) in " + segments.size() + " segment(s)");
+        scheduleCompactionIfNeeded();
+    }
+    
+    /**
+     * Index every intact record of a segment; returns the end of the last one
+     */
+    private long scan(Segment segment) {
+        ByteBuffer view = segment.mapped.duplicate();
+        long position = 0;
+        while (view.remaining() >= HEADER_BYTES) {
+            int start = view.position();
+            int length = view.getInt();
+            int crc = view.getInt();
+            if (length < 2 || length > view.remaining()) {
+                break;
+            }
+            ByteBuffer body = view.slice();
+            body.limit(length);
+            CRC32 checksum = new CRC32();
+            checksum.update(body.duplicate());
+            if ((int) checksum.getValue() != crc) {
+                break;
+            }
+            int idLength = body.getShort() & 0xffff;
+            if (idLength > length - 2) {
+                break;
+            }
+            byte[] idBytes = new byte[idLength];
+            body.get(idBytes);
+            String id = new String(idBytes, StandardCharsets.US_ASCII);
+            
+            Location location = new Location(segment, start + HEADER_BYTES, length);
+            segment.liveBytes.addAndGet(location.recordBytes());
+            Location previous = index.put(id, location);
+            if (previous != null) {
+                previous.segment.liveBytes.addAndGet(-previous.recordBytes());
+            }
+            view.position(start + HEADER_BYTES + length);
+            position = view.position();
+        }
+        return position;
+    }
+    
+    @Override
+    public String read(String id) throws IOException {
+        Location location = index.get(id);
+        if (location == null) {
+            return fallback != null ? fallback.read(id) : null;
+        }
+        byte[] body = location.segment.read(location.offset, location.length);
+        int idLength = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+        return new String(body, 2 + idLength, body.length - 2 - idLength, StandardCharsets.UTF_8);
+    }
+    
+    @Override
+    public void write(String id, String text) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.US_ASCII);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + 2 + idBytes.length + textBytes.length);
+        record.putInt(2 + idBytes.length + textBytes.length);
+        record.putInt(0);
+        record.putShort((short) idBytes.length);
+        record.put(idBytes);
+        record.put(textBytes);
+        
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), HEADER_BYTES, record.capacity() - HEADER_BYTES);
+        record.putInt(4, (int) checksum.getValue());
+        record.flip();
+        
+        appendLock.lock();
+        try {
+            replace(id, append(record));
+        } finally {
+            appendLock.unlock();
+        }
+    }
+    
+    @Override
+    public boolean exists(String id) {
+        return index.containsKey(id) || (fallback != null && fallback.exists(id));
+    }
+    
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        appendLock.lock();
+        try {
+            if (active != null) {
+                active.channel.force(false);
+            }
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        } catch (IOException e) {
+            ServerLogger.logError("Failed to sync paste segment", e);
+        } finally {
+            appendLock.unlock();
+        }
+        if (fallback != null) {
+            fallback.close();
+        }
+    }
+    
+    /**
+     * Write a complete record at the end of the active segment; caller holds appendLock
+     */
+    private Location append(ByteBuffer record) throws IOException {
+        if (active.size > 0 && active.size + record.remaining() > segmentMaxBytes) {
+            rollSegment();
+        }
+        long start = active.size;
+        int length = record.remaining() - HEADER_BYTES;
+        // The record may be a slice of another segment's mapping, so track bytes written
+        long written = 0;
+        while (record.hasRemaining()) {
+            written += active.channel.write(record, start + written);
+        }
+        active.size += HEADER_BYTES + length;
+        Location location = new Location(active, start + HEADER_BYTES, length);
+        active.liveBytes.addAndGet(location.recordBytes());
+        return location;
+    }
+    
+    /**
+     * Point a paste at its new record; caller holds appendLock
+     */
+    private void replace(String id, Location location) {
+        Location previous = index.put(id, location);
+        if (previous != null) {
+            previous.segment.liveBytes.addAndGet(-previous.recordBytes());
+        }
+    }
+    
+    /**
+     * Seal the active segment and start the next one; caller holds appendLock
+     */
+    private void rollSegment() throws IOException {
+        active.seal();
+        startSegment(active.number + 1);
+        scheduleCompactionIfNeeded();
+    }
+    
+    private void startSegment(int number) throws IOException {
+        Path path = dir.resolve(String.format("pastes-%06d.seg", number));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = new Segment(number, path, channel);
+        segments.put(number, active);
+    }
+    
+    private void scheduleCompactionIfNeeded() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(this::compact);
+        }
+    }
+    
+    /**
+     * Move the current records out of sparse sealed segments, then delete those segments.
+     * Writers keep going meanwhile: a record is only copied if it is still the latest.
+     */
+    private void compact() {
+        try {
+            List<Segment> sparse = new ArrayList<>();
+            appendLock.lock();
+            try {
+                for (Segment segment : segments.values()) {
+                    if (segment != active && segment.liveBytes.get() < segment.size * COMPACT_BELOW_LIVE) {
+                        sparse.add(segment);
+                    }
+                }
+            } finally {
+                appendLock.unlock();
+            }
+            
+            for (Segment segment : sparse) {
+                long copied = 0;
+                ByteBuffer view = segment.mapped.duplicate();
+                while (view.remaining() >= HEADER_BYTES) {
+                    int start = view.position();
+                    int length = view.getInt(start);
+                    if (length < 2 || length > view.remaining() - HEADER_BYTES) {
+                        break;
+                    }
+                    int idLength = view.getShort(start + HEADER_BYTES) & 0xffff;
+                    byte[] idBytes = new byte[idLength];
+                    view.position(start + HEADER_BYTES + 2);
+                    view.get(idBytes);
+                    String id = new String(idBytes, StandardCharsets.US_ASCII);
+                    
+                    Location current = index.get(id);
+                    if (current != null && current.segment == segment && current.offset == start + HEADER_BYTES) {
+                        ByteBuffer record = view.duplicate();
+                        record.position(start);
+                        record.limit(start + HEADER_BYTES + length);
+                        appendLock.lock();
+                        try {
+                            // Skip it if the paste was written again in the meantime
+                            if (index.get(id) == current) {
+                                replace(id, append(record));
+                                copied++;
+                            }
+                        } finally {
+                            appendLock.unlock();
+                        }
+                    }
+                    view.position(start + HEADER_BYTES + length);
+                }
+                
+                appendLock.lock();
+                try {
+                    // Copies must be on disk before the originals go
+                    active.channel.force(false);
+                    segments.remove(segment.number);
+                    segment.close();
+                    Files.delete(segment.path);
+                } finally {
+                    appendLock.unlock();
+                }
+                ServerLogger.log("Paste segment " + segment.number + " compacted: moved " + copied + " paste(s)");
+            }
+        } catch (Exception e) {
+            ServerLogger.logError("Paste compaction failed", e);
+        } finally {
+            compactionScheduled.set(false);
+        }
+    }
+}
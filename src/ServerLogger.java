@@ -1,77 +1,401 @@
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * ServerLogger - Centralized logging facility
- * Logs server events and errors to a file for debugging
+ * Logs server events and errors to a file for debugging.
+ * Callers only claim a slot in a bounded ring buffer, lock-free; a background
+ * thread formats what has piled up and appends it to server.log in one write
+ * through a FileChannel kept open, echoing it to the console. The file is
+ * rotated by size and age. When the buffer is full, DEBUG and INFO entries are
+ * dropped and counted; WARN and ERROR entries wait a few milliseconds for room
+ * before they are dropped too, so a request thread never waits on the disk.
+ * The level can be changed while the server runs. Messages that take work to
+ * build are passed as a Supplier, which is only called when the level is on.
  */
 public class ServerLogger {
     private static final String LOG_FILE = "../server.log";
-    private static final DateTimeFormatter formatter = 
+    private static final DateTimeFormatter formatter =
         DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     
+    enum Level { DEBUG, INFO, WARN, ERROR }
+    
+    private static final class Entry {
+        final long timeMillis;
+        final Level level;
+        final String message;
+        final Throwable error;
+        
+        Entry(Level level, String message, Throwable error) {
+            this.timeMillis = System.currentTimeMillis();
+            this.level = level;
+            this.message = message;
+            this.error = error;
+        }
+    }
+    
+    // Longest a WARN or ERROR entry waits for room in a full buffer
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // Formatted bytes collected before the flusher writes them out
+    private static final int BATCH_BYTES = 64 * 1024;
+    
+    private static volatile Level minLevel = getMinLevel();
+    private static final long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(MainServer.getEnvInt("LOG_FLUSH_MS", 100));
+    private static final long maxFileBytes = MainServer.getEnvInt("LOG_MAX_MB", 64) * 1024L * 1024L;
+    private static final long rotateMillis = TimeUnit.HOURS.toMillis(MainServer.getEnvInt("LOG_ROTATE_HOURS", 24));
+    private static final int keepFiles = MainServer.getEnvInt("LOG_KEEP_FILES", 5);
+    
+    // Multi-producer, single-consumer ring: producers claim a sequence number from
+    // tail and then publish into its slot; only the flusher reads slots and moves head
+    private static final AtomicReferenceArray<Entry> ring =
+        new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(2, MainServer.getEnvInt("LOG_BUFFER_ENTRIES", 8192)) * 2 - 1));
+    private static final int mask = ring.length() - 1;
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head = 0;
+    private static final AtomicLong dropped = new AtomicLong();
+    
+    private static final Thread flusher = new Thread(ServerLogger::flushLoop, "log-flusher");
+    private static volatile boolean flusherIdle = false;
+    private static volatile boolean stopping = false;
+    // Set once the flusher has exited; later entries, from other shutdown hooks, are written directly
+    private static volatile boolean stopped = false;
+    private static final ReentrantLock lateLock = new ReentrantLock();
+    
+    // Flusher state
+    private static final StringBuilder fileText = new StringBuilder(BATCH_BYTES + 1024);
+    private static final StringBuilder stdoutText = new StringBuilder();
+    private static final StringBuilder stderrText = new StringBuilder();
+    private static FileChannel channel;
+    private static long fileBytes;
+    private static long fileOpenedMillis;
+    private static boolean fileFailed = false;
+    private static long lastSecond = -1;
+    private static String lastStamp;
+    
+    static {
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLogger::shutdown, "log-shutdown"));
+    }
+    
+    private static Level getMinLevel() {
+        String level = System.getenv("LOG_LEVEL");
+        if (level == null || level.isEmpty()) {
+            return Level.INFO;
+        }
+        try {
+            return Level.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid LOG_LEVEL environment variable: " + level + ", using default INFO");
+            return Level.INFO;
+        }
+    }
+    
+    /**
+     * Whether entries at this level are logged at all
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(minLevel) >= 0;
+    }
+    
+    public static Level getLevel() {
+        return minLevel;
+    }
+    
+    /**
+     * Change the lowest level logged, from now on
+     */
+    public static void setLevel(Level level) {
+        minLevel = level;
+    }
+    
+    /**
+     * Log a message useful only while debugging
+     */
+    public static void debug(String message) {
+        write(Level.DEBUG, message, null);
+    }
+    
+    /**
+     * Log a message useful only while debugging, built only if DEBUG is on
+     */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            write(Level.DEBUG, message.get(), null);
+        }
+    }
+    
     /**
      * Log an informational message
      */
     public static void log(String message) {
-        writeLog("INFO", message, null);
-        System.out.println("[INFO] " + message);
+        write(Level.INFO, message, null);
+    }
+    
+    /**
+     * Log an informational message, built only if INFO is on
+     */
+    public static void log(Supplier<String> message) {
+        if (isEnabled(Level.INFO)) {
+            write(Level.INFO, message.get(), null);
+        }
+    }
+    
+    /**
+     * Log a problem the server recovered from
+     */
+    public static void warn(String message) {
+        write(Level.WARN, message, null);
     }
     
     /**
      * Log an error with exception details
      */
     public static void logError(String message, Exception e) {
-        writeLog("ERROR", message, e);
-        System.err.println("[ERROR] " + message);
-        if (e != null) {
-            e.printStackTrace();
+        write(Level.ERROR, message, e);
+    }
+    
+    private static void write(Level level, String message, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
         }
+        Entry entry = new Entry(level, message, error);
+        if (stopped) {
+            writeLate(entry);
+            return;
+        }
+        if (offer(entry)) {
+            return;
+        }
+        if (level.compareTo(Level.WARN) >= 0) {
+            // Worth a short wait: wake the flusher and retry until it has made room
+            long deadline = System.nanoTime() + MAX_WAIT_NANOS;
+            do {
+                LockSupport.unpark(flusher);
+                LockSupport.parkNanos(100_000);
+                if (offer(entry)) {
+                    return;
+                }
+            } while (System.nanoTime() < deadline);
+        }
+        dropped.incrementAndGet();
     }
     
     /**
-     * Write log entry to file
+     * Claim the next slot and publish the entry into it, or false if the ring is full
      */
-    private static synchronized void writeLog(String level, String message, Exception e) {
+    private static boolean offer(Entry entry) {
+        while (true) {
+            long sequence = tail.get();
+            long used = sequence - head;
+            if (used > mask) {
+                return false;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                ring.lazySet((int) sequence & mask, entry);
+                if (used >= (mask + 1) / 2 && flusherIdle) {
+                    // Half full: drain now rather than at the next interval
+                    flusherIdle = false;
+                    LockSupport.unpark(flusher);
+                }
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Write out everything logged so far; runs on JVM exit
+     */
+    static void shutdown() {
+        stopping = true;
+        LockSupport.unpark(flusher);
         try {
-            StringBuilder logEntry = new StringBuilder();
-            logEntry.append("[").append(LocalDateTime.now().format(formatter)).append("] ");
-            logEntry.append("[").append(level).append("] ");
-            logEntry.append(message);
-            
-            if (e != null) {
-                logEntry.append("\n  Exception: ").append(e.getClass().getName());
-                logEntry.append(": ").append(e.getMessage());
-                
-                // Include stack trace
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw);
-                e.printStackTrace(pw);
-                String stackTrace = sw.toString();
-                
-                // Indent stack trace
-                for (String line : stackTrace.split("\n")) {
-                    logEntry.append("\n  ").append(line);
+            flusher.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static void flushLoop() {
+        while (true) {
+            boolean stop = stopping;
+            drain();
+            if (stop && tail.get() == head) {
+                lateLock.lock();
+                try {
+                    stopped = true;
+                } finally {
+                    lateLock.unlock();
                 }
+                return;
             }
+            flusherIdle = true;
+            LockSupport.parkNanos(flushIntervalNanos);
+            flusherIdle = false;
+        }
+    }
+    
+    private static void writeLate(Entry entry) {
+        lateLock.lock();
+        try {
+            format(entry);
+            writeBatch();
+        } finally {
+            lateLock.unlock();
+        }
+    }
+    
+    /**
+     * Format and write every published entry, in batches
+     */
+    private static void drain() {
+        long sequence = head;
+        Entry entry;
+        while ((entry = ring.get((int) sequence & mask)) != null) {
+            ring.lazySet((int) sequence & mask, null);
+            sequence++;
+            head = sequence;
             
-            logEntry.append("\n");
+            format(entry);
+            if (fileText.length() >= BATCH_BYTES) {
+                writeBatch();
+            }
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            format(new Entry(Level.WARN, "Log buffer full: dropped " + lost + " entries", null));
+        }
+        if (fileText.length() > 0) {
+            writeBatch();
+        }
+    }
+    
+    private static void format(Entry entry) {
+        String trace = entry.error != null ? stackTrace(entry.error) : null;
+        
+        fileText.append('[').append(stamp(entry.timeMillis)).append("] ");
+        fileText.append('[').append(entry.level).append("] ");
+        fileText.append(entry.message);
+        if (trace != null) {
+            fileText.append("\n  Exception: ").append(entry.error.getClass().getName());
+            fileText.append(": ").append(entry.error.getMessage());
             
-            // Append to log file
-            Files.write(Paths.get(LOG_FILE), 
-                       logEntry.toString().getBytes("UTF-8"),
-                       StandardOpenOption.CREATE,
-                       StandardOpenOption.APPEND);
-                       
-        } catch (IOException ex) {
-            // Fallback to console only if file logging fails
-            System.err.println("Failed to write to log file: " + ex.getMessage());
+            // Indent stack trace
+            for (String line : trace.split("\n")) {
+                fileText.append("\n  ").append(line);
+            }
+        }
+        fileText.append('\n');
+        
+        // Console: errors and their stack traces on stderr, the rest on stdout
+        StringBuilder console = entry.level == Level.ERROR ? stderrText : stdoutText;
+        console.append('[').append(entry.level).append("] ").append(entry.message).append('\n');
+        if (trace != null) {
+            console.append(trace);
+        }
+    }
+    
+    /**
+     * Timestamp of an entry; entries logged in the same second share one
+     */
+    private static String stamp(long timeMillis) {
+        long second = timeMillis / 1000;
+        if (second != lastSecond) {
+            lastSecond = second;
+            lastStamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMillis), ZoneId.systemDefault()).format(formatter);
+        }
+        return lastStamp;
+    }
+    
+    private static String stackTrace(Throwable error) {
+        StringWriter sw = new StringWriter();
+        error.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
+    }
+    
+    private static void writeBatch() {
+        if (stdoutText.length() > 0) {
+            System.out.print(stdoutText);
+            stdoutText.setLength(0);
+        }
+        if (stderrText.length() > 0) {
+            System.err.print(stderrText);
+            stderrText.setLength(0);
+        }
+        
+        byte[] bytes = fileText.toString().getBytes(StandardCharsets.UTF_8);
+        fileText.setLength(0);
+        try {
+            if (channel == null || needsRotation(bytes.length)) {
+                openFile(channel != null);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            fileBytes += bytes.length;
+            fileFailed = false;
+        } catch (IOException e) {
+            // The console still got it; say so once, then retry on the next batch
+            if (!fileFailed) {
+                System.err.println("Failed to write to log file: " + e.getMessage());
+                fileFailed = true;
+            }
+            closeFile();
+        }
+    }
+    
+    private static boolean needsRotation(int nextBytes) {
+        return (fileBytes > 0 && fileBytes + nextBytes > maxFileBytes)
+            || System.currentTimeMillis() - fileOpenedMillis >= rotateMillis;
+    }
+    
+    /**
+     * Open server.log for appending, first shifting it to server.log.1 (and so on) when rotating
+     */
+    private static void openFile(boolean rotate) throws IOException {
+        closeFile();
+        Path path = Paths.get(LOG_FILE);
+        if (rotate && Files.exists(path)) {
+            Files.deleteIfExists(Paths.get(LOG_FILE + "." + keepFiles));
+            for (int i = keepFiles - 1; i >= 1; i--) {
+                Path older = Paths.get(LOG_FILE + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Paths.get(LOG_FILE + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(path, Paths.get(LOG_FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+        // Age counts from when this process opened the file
+        fileOpenedMillis = System.currentTimeMillis();
+    }
+    
+    private static void closeFile() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to write to
         }
+        channel = null;
     }
 }
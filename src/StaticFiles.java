@@ -0,0 +1,275 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * StaticFiles - Serves the web/ assets from memory
+ * Each file is read, gzip-compressed and given an ETag once, so a repeat visit
+ * is answered with 304 Not Modified and a first visit with one write of
+ * ready-made bytes. Files larger than STATIC_CACHE_MAX_KB are not kept in
+ * memory; they are sent from disk with FileChannel.transferTo. With
+ * STATIC_WATCH=true a WatchService on web/ drops changed files from the cache,
+ * so edits show up without a restart.
+ */
+public class StaticFiles {
+    private static final String WEB_DIR = "web";
+    private static final long MAX_CACHED_BYTES = MainServer.getEnvInt("STATIC_CACHE_MAX_KB", 1024) * 1024L;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    
+    private static final ConcurrentHashMap<String, Asset> assets = new ConcurrentHashMap<>();
+    
+    /**
+     * One file as it is sent. body is null for files streamed from disk.
+     */
+    private static final class Asset {
+        final Path path;
+        final String contentType;
+        final long length;
+        final long lastModified; // whole seconds, as HTTP dates carry no more
+        final String etag;
+        final byte[] body;
+        final byte[] gzipped; // null when compression does not pay off
+        volatile byte[][] template; // split by getTemplate on first use
+        
+        Asset(Path path, String contentType, long length, long lastModified, String etag, byte[] body, byte[] gzipped) {
+            this.path = path;
+            this.contentType = contentType;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.body = body;
+            this.gzipped = gzipped;
+        }
+    }
+    
+    /**
+     * Start watching web/ for changes if STATIC_WATCH=true
+     */
+    public static void initialize() {
+        String watch = System.getenv("STATIC_WATCH");
+        if (watch == null || !(watch.trim().equalsIgnoreCase("true") || watch.trim().equals("1"))) {
+            return;
+        }
+        try {
+            WatchService watcher = FileSystems.getDefault().newWatchService();
+            Paths.get(WEB_DIR).register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            Thread thread = new Thread(() -> watch(watcher), "static-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            ServerLogger.log("Watching " + WEB_DIR + "/ for changes");
+        } catch (IOException e) {
+            ServerLogger.logError("Failed to watch " + WEB_DIR + "/", e);
+        }
+    }
+    
+    private static void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        assets.clear();
+                    } else {
+                        assets.remove(event.context().toString());
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Send web/{fileName}, or 304 if the client's copy is current
+     */
+    public static void serve(Socket socket, String fileName, String contentType, Map<String, String> headers) throws IOException {
+        Asset asset;
+        try {
+            asset = get(fileName, contentType);
+        } catch (IOException e) {
+            HttpServer.sendResponse(socket, 404, "text/plain", "File not found");
+            return;
+        }
+        
+        // no-cache: browsers revalidate every time, which costs a 304 when nothing changed
+        boolean gzip = asset.gzipped != null && acceptsGzip(headers.get("accept-encoding"));
+        String etag = gzip ? asset.etag.substring(0, asset.etag.length() - 1) + "-gz\"" : asset.etag;
+        StringBuilder cacheHeaders = new StringBuilder(160);
+        cacheHeaders.append("ETag: ").append(etag).append("\r\n");
+        cacheHeaders.append("Last-Modified: ").append(HTTP_DATE.format(Instant.ofEpochSecond(asset.lastModified))).append("\r\n");
+        cacheHeaders.append("Cache-Control: no-cache\r\n");
+        if (asset.gzipped != null) {
+            cacheHeaders.append("Vary: Accept-Encoding\r\n");
+        }
+        
+        if (notModified(asset, headers)) {
+            HttpServer.sendNotModified(socket, cacheHeaders.toString());
+        } else if (asset.body == null) {
+            HttpServer.sendFile(socket, 200, asset.contentType, cacheHeaders.toString(), asset.path, asset.length);
+        } else if (gzip) {
+            cacheHeaders.append("Content-Encoding: gzip\r\n");
+            HttpServer.sendBytes(socket, 200, asset.contentType, cacheHeaders.toString(), asset.gzipped);
+        } else {
+            HttpServer.sendBytes(socket, 200, asset.contentType, cacheHeaders.toString(), asset.body);
+        }
+    }
+    
+    /**
+     * web/{fileName} cut before the first occurrence of marker, for pages that get a
+     * per-request fragment inserted there. The split is cached with the file, so a
+     * reloaded file is split again; one marker per file.
+     */
+    public static byte[][] getTemplate(String fileName, String contentType, String marker) throws IOException {
+        Asset asset = get(fileName, contentType);
+        byte[][] parts = asset.template;
+        if (parts == null) {
+            byte[] body = asset.body != null ? asset.body : Files.readAllBytes(asset.path);
+            int at = indexOf(body, marker.getBytes(StandardCharsets.UTF_8));
+            if (at < 0) {
+                at = body.length;
+            }
+            parts = new byte[][] { Arrays.copyOfRange(body, 0, at), Arrays.copyOfRange(body, at, body.length) };
+            asset.template = parts;
+        }
+        return parts;
+    }
+    
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    private static Asset get(String fileName, String contentType) throws IOException {
+        Asset asset = assets.get(fileName);
+        if (asset != null) {
+            return asset;
+        }
+        asset = load(fileName, contentType);
+        // Large files are re-read from disk on every request, so their metadata must be too
+        if (asset.body != null) {
+            assets.put(fileName, asset);
+        }
+        return asset;
+    }
+    
+    private static Asset load(String fileName, String contentType) throws IOException {
+        Path path = Paths.get(WEB_DIR, fileName);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis() / 1000;
+        String type = contentType + "; charset=UTF-8";
+        
+        if (attributes.size() > MAX_CACHED_BYTES) {
+            String etag = "\"" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(lastModified) + "\"";
+            return new Asset(path, type, attributes.size(), lastModified, etag, null, null);
+        }
+        
+        byte[] body = Files.readAllBytes(path);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(body.length) + "\"";
+        byte[] gzipped = gzip(body);
+        if (gzipped.length >= body.length) {
+            gzipped = null;
+        }
+        ServerLogger.log("Cached static file " + fileName + " (" + body.length + " bytes"
+            + (gzipped != null ? ", " + gzipped.length + " gzipped)" : ")"));
+        return new Asset(path, type, body.length, lastModified, etag, body, gzipped);
+    }
+    
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 3 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Accept-Encoding lists gzip (or *) without q=0
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            if (!coding.equals("gzip") && !coding.equals("*")) {
+                continue;
+            }
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim().replace(" ", "");
+                if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?")) {
+                    refused = true;
+                }
+            }
+            if (!refused) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * If-None-Match wins over If-Modified-Since when both are sent
+     */
+    private static boolean notModified(Asset asset, Map<String, String> headers) {
+        String ifNoneMatch = headers.get("if-none-match");
+        if (ifNoneMatch != null) {
+            String plain = asset.etag.substring(1, asset.etag.length() - 1);
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*")) {
+                    return true;
+                }
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                // Weak comparison: the gzipped copy is the same content
+                if (tag.equals("\"" + plain + "\"") || tag.equals("\"" + plain + "-gz\"")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        String ifModifiedSince = headers.get("if-modified-since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                return asset.lastModified <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
@@ -3,38 +3,75 @@ import java.nio.file.*;
 import java.util.concurrent.locks.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.*;
+import java.util.regex.Pattern;
 
 /**
- * Storage - Handles paste persistence using JSON files
+ * Storage - Handles paste persistence through a PasteStore (JSON files by default)
  * Implements synchronized access to prevent race conditions
  */
 public class Storage {
     private static final String DATA_DIR = "../data";
     private static final String COUNTER_FILE = DATA_DIR + "/counter.txt";
+    
+    // Five digits, zero padded, up to 99999; beyond that the plain number.
+    // Exactly one spelling per paste, so IDs can be used as file names directly.
+    public static final String ID_PATTERN = "(\\d{5}|[1-9]\\d{5,11})";
+    private static final Pattern VALID_ID = Pattern.compile("^" + ID_PATTERN + "$");
+    
     public static final int MAX_PASTE_SIZE = 10 * 1024 * 1024; // 10 MB limit
-    private static final ReentrantLock counterLock = new ReentrantLock();
+    
+    // Paste numbers come from memory; counter.txt only moves once per block
+    private static final IdAllocator ids = new IdAllocator(Paths.get(COUNTER_FILE),
+        MainServer.getEnvInt("ID_BLOCK_SIZE", 1000));
     private static final ConcurrentHashMap<String, ReentrantLock> idLocks = new ConcurrentHashMap<>();
     
+    // Paste text on disk: one JSON file per paste, or packed segment files
+    private static final PasteStore store = createStore();
+    
+    // Hot pastes are served from memory; writes are absorbed there and flushed in the background
+    private static final PasteCache cache = new PasteCache(
+        MainServer.getEnvInt("PASTE_CACHE_MAX_MB", 64) * 1024L * 1024L,
+        MainServer.getEnvInt("PASTE_FLUSH_DIRTY_MB", 8) * 1024L * 1024L,
+        MainServer.getEnvInt("PASTE_FLUSH_INTERVAL_MS", 1000),
+        Storage::writePaste);
+    
+    // Live edits become one version once a burst of typing settles
+    private static final EditCoalescer edits = new EditCoalescer(
+        MainServer.getEnvInt("EDIT_QUIET_MS", 1500),
+        MainServer.getEnvInt("EDIT_MAX_DELAY_MS", 10000));
+    
+    private static final Metrics.Histogram readTime = Metrics.timer("paste_storage_read_seconds",
+        "Time to read one paste from disk", "");
+    private static final Metrics.Histogram writeTime = Metrics.timer("paste_storage_write_seconds",
+        "Time to write one paste to disk", "");
+    static {
+        Metrics.gauge("paste_cache_bytes", "Estimated memory held by the paste cache", cache::size);
+    }
+    
     public static void initialize() {
         try {
             // Create data directory if not exists
             Files.createDirectories(Paths.get(DATA_DIR));
             
-            // Create counter file if not exists
-            File counterFile = new File(COUNTER_FILE);
-            if (!counterFile.exists()) {
-                Files.write(Paths.get(COUNTER_FILE), "0".getBytes());
-            }
+            // Persist buffered writes on a clean shutdown (SIGTERM, Ctrl+C)
+            Runtime.getRuntime().addShutdownHook(new Thread(Storage::shutdown, "storage-shutdown"));
             
-            System.out.println("Storage initialized");
+            // Index paste history once, up front
+            StorageHistory.initialize();
+            
+            // Open the paste store (segment store: rebuild its offset index)
+            store.open();
+            
+            // Resume paste numbering from the counter file or the highest paste known
+            ids.recover(highestExistingId());
+            
+            ServerLogger.log("Storage initialized");
         } catch (IOException e) {
-            System.err.println("Failed to initialize storage: " + e.getMessage());
-            e.printStackTrace();
+            ServerLogger.logError("Failed to initialize storage", e);
         }
     }
     
     public static String createPaste(String text, String creatorIp) {
-        counterLock.lock();
         try {
             // Validate paste size
             if (text == null || text.length() > MAX_PASTE_SIZE) {
@@ -42,61 +79,132 @@ public class Storage {
                 return null;
             }
             
-            // Read current counter
-            String counterStr = new String(Files.readAllBytes(Paths.get(COUNTER_FILE))).trim();
-            int counter = Integer.parseInt(counterStr);
-            counter++;
-            
-            // Generate ID - always 5 digits
-            String id = String.format("%05d", counter);
+            // Generate ID - at least 5 digits
+            String id = formatId(ids.next());
             
             // Validate ID format (paranoid check)
             if (!isValidId(id)) {
                 throw new IllegalStateException("Generated invalid ID: " + id);
             }
             
-            // Update counter
-            Files.write(Paths.get(COUNTER_FILE), String.valueOf(counter).getBytes());
-            
             // Save paste with per-ID locking
             savePaste(id, text);
             
             // Append to history
             StorageHistory.append(id, "create", 1, creatorIp, null);
             
-            ServerLogger.log("Created paste: " + id);
+            ServerLogger.log(() -> "Created paste: " + id);
             return id;
             
         } catch (Exception e) {
             ServerLogger.logError("Failed to create paste", e);
             return null;
-        } finally {
-            counterLock.unlock();
         }
     }
     
+    /**
+     * Paste store chosen by PASTE_STORE: files (default) or segments.
+     * The segment store falls back to the JSON files for pastes it has not stored yet.
+     */
+    private static PasteStore createStore() {
+        PasteStore files = new FilePasteStore(Paths.get(DATA_DIR));
+        String kind = System.getenv("PASTE_STORE");
+        if (kind == null || kind.isEmpty() || kind.trim().equalsIgnoreCase("files")) {
+            return files;
+        }
+        if (kind.trim().equalsIgnoreCase("segments")) {
+            return new SegmentPasteStore(Paths.get(DATA_DIR, "segments"),
+                MainServer.getEnvInt("PASTE_SEGMENT_MB", 64) * 1024L * 1024L, files);
+        }
+        ServerLogger.warn("Invalid PASTE_STORE environment variable: " + kind + ", using default files");
+        return files;
+    }
+    
+    /**
+     * Canonical ID for a paste number
+     */
+    static String formatId(long number) {
+        return String.format("%05d", number);
+    }
+    
+    /**
+     * Highest paste number known: every paste has a create entry in the history
+     * index; pastes older than history tracking are still flat data/{id}.json files.
+     * The sharded tree is never walked, so this stays cheap with millions of pastes.
+     */
+    private static long highestExistingId() {
+        long highest = StorageHistory.getHighestId();
+        String[] names = new File(DATA_DIR).list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(".json") && isValidId(name.substring(0, name.length() - 5))) {
+                    highest = Math.max(highest, Long.parseLong(name.substring(0, name.length() - 5)));
+                }
+            }
+        }
+        return highest;
+    }
+    
+    /**
+     * Flush every buffered write to disk
+     */
+    public static void shutdown() {
+        edits.close();
+        cache.close();
+        store.close();
+        ids.close();
+        ServerLogger.log("Storage flushed");
+    }
+    
+    /**
+     * Persist an edit later, together with any that follow it in quick succession
+     * Only the last persist action of a burst runs; it should save the latest text
+     */
+    public static void deferUpdate(String id, Runnable persist) {
+        edits.edited(id, persist);
+    }
+    
+    /**
+     * Run a paste's deferred update now, if one is waiting
+     */
+    public static void flushDeferred(String id) {
+        edits.flush(id);
+    }
+    
+    /**
+     * Drop a paste's deferred update after its latest text was saved directly
+     */
+    public static void cancelDeferred(String id) {
+        edits.cancel(id);
+    }
+    
     public static String getPaste(String id) {
         try {
             // Validate ID format - prevent path traversal
             if (!isValidId(id)) {
-                ServerLogger.log("Rejected invalid ID format: " + id);
+                ServerLogger.log(() -> "Rejected invalid ID format: " + id);
                 return null;
             }
             
-            // Safe file naming - always data/{id}.json
-            String filePath = getSafeFilePath(id);
-            File file = new File(filePath);
-            
-            if (!file.exists()) {
-                return null;
+            // Serve from memory when possible
+            String cached = cache.get(id);
+            if (cached != null) {
+                return cached;
             }
             
-            // Read file with per-ID lock
+            // Read from the store with per-ID lock
             ReentrantLock lock = getIdLock(id);
             lock.lock();
             try {
-                String json = new String(Files.readAllBytes(Paths.get(filePath)), "UTF-8");
-                return extractTextFromJson(json);
+                long start = System.nanoTime();
+                String text = store.read(id);
+                readTime.recordSince(start);
+                if (text == null) {
+                    return null;
+                }
+                // Cached under the ID lock so a concurrent flush cannot be overtaken by this older copy
+                cache.putClean(id, text);
+                return text;
             } finally {
                 lock.unlock();
             }
@@ -111,20 +219,17 @@ public class Storage {
         try {
             // Validate ID format - prevent path traversal
             if (!isValidId(id)) {
-                ServerLogger.log("Rejected invalid ID format for update: " + id);
+                ServerLogger.log(() -> "Rejected invalid ID format for update: " + id);
                 return false;
             }
             
             // Validate paste size
             if (text == null || text.length() > MAX_PASTE_SIZE) {
-                ServerLogger.log("Rejected update for " + id + ": size exceeds limit");
+                ServerLogger.log(() -> "Rejected update for " + id + ": size exceeds limit");
                 return false;
             }
             
-            String filePath = getSafeFilePath(id);
-            File file = new File(filePath);
-            
-            if (!file.exists()) {
+            if (!pasteExists(id)) {
                 return false;
             }
             
@@ -137,7 +242,7 @@ public class Storage {
             // Append to history
             StorageHistory.append(id, "update", newVersion, updaterIp, null);
             
-            ServerLogger.log("Updated paste: " + id);
+            ServerLogger.log(() -> "Updated paste: " + id);
             return true;
             
         } catch (Exception e) {
@@ -146,53 +251,43 @@ public class Storage {
         }
     }
     
-    private static void savePaste(String id, String text) throws IOException {
+    /**
+     * Record new paste text; it is written to disk by the background flusher
+     */
+    private static void savePaste(String id, String text) {
+        cache.putDirty(id, text);
+    }
+    
+    /**
+     * A paste exists if it is buffered in memory or already on disk.
+     * Only metadata is consulted; the paste text is never read.
+     */
+    public static boolean pasteExists(String id) {
+        return isValidId(id) && (cache.contains(id) || store.exists(id));
+    }
+    
+    /**
+     * Write a paste to the store; called by the cache flusher
+     */
+    private static void writePaste(String id, String text) throws IOException {
         // Get per-ID lock to serialize writes for this paste
         ReentrantLock lock = getIdLock(id);
         lock.lock();
         try {
-            String filePath = getSafeFilePath(id);
-            
-            // Create JSON object
-            StringBuilder json = new StringBuilder();
-            json.append("{\n");
-            json.append("  \"id\": \"").append(id).append("\",\n");
-            json.append("  \"text\": ").append(Utils.toJsonString(text)).append(",\n");
-            json.append("  \"timestamp\": ").append(System.currentTimeMillis()).append(",\n");
-            json.append("  \"version\": 1\n");
-            json.append("}");
-            
-            // Atomic write: write to temp file then rename
-            String tempPath = filePath + ".tmp";
-            Files.write(Paths.get(tempPath), json.toString().getBytes("UTF-8"));
-            
-            // Atomic rename - prevents partial/corrupted files
-            Files.move(Paths.get(tempPath), Paths.get(filePath), 
-                      StandardCopyOption.REPLACE_EXISTING, 
-                      StandardCopyOption.ATOMIC_MOVE);
+            long start = System.nanoTime();
+            store.write(id, text);
+            writeTime.recordSince(start);
         } finally {
             lock.unlock();
         }
     }
     
     /**
-     * Validate ID format - must be exactly 5 digits
+     * Validate ID format - digits only, see ID_PATTERN
      * Prevents path traversal attacks
      */
-    private static boolean isValidId(String id) {
-        return id != null && id.matches("^\\d{5}$");
-    }
-    
-    /**
-     * Get safe file path - always data/{id}.json
-     * Never accepts user-supplied paths
-     */
-    private static String getSafeFilePath(String id) {
-        // Paranoid: double-check ID is valid
-        if (!isValidId(id)) {
-            throw new IllegalArgumentException("Invalid ID: " + id);
-        }
-        return DATA_DIR + "/" + id + ".json";
+    public static boolean isValidId(String id) {
+        return id != null && VALID_ID.matcher(id).matches();
     }
     
     /**
@@ -207,38 +302,6 @@ public class Storage {
      * Get next version number for a paste from history
      */
     private static int getNextVersion(String id) {
-        List<Map<String, Object>> history = StorageHistory.readById(id);
-        if (history.isEmpty()) {
-            return 1;
-        }
-        Map<String, Object> latest = history.get(history.size() - 1);
-        return ((Number) latest.get("version")).intValue() + 1;
-    }
-    
-    private static String extractTextFromJson(String json) {
-        // Simple JSON parsing - find "text" field value
-        int textIndex = json.indexOf("\"text\"");
-        if (textIndex == -1) return "";
-        
-        int colonIndex = json.indexOf(":", textIndex);
-        if (colonIndex == -1) return "";
-        
-        // Skip whitespace and quote
-        int startQuote = json.indexOf("\"", colonIndex);
-        if (startQuote == -1) return "";
-        
-        // Find end quote (handle escaped quotes)
-        int endQuote = startQuote + 1;
-        while (endQuote < json.length()) {
-            if (json.charAt(endQuote) == '"' && json.charAt(endQuote - 1) != '\\') {
-                break;
-            }
-            endQuote++;
-        }
-        
-        String text = json.substring(startQuote + 1, endQuote);
-        
-        // Unescape JSON string
-        return Utils.unescapeJson(text);
+        return StorageHistory.getLatestVersion(id) + 1;
     }
 }
@@ -1,54 +1,375 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * StorageHistory - Manages paste history in newline-delimited JSON format
  * Tracks creation, updates, and deletions with IP addresses and timestamps
+ *
+ * History is a sequence of segment files. New entries are appended to the
+ * active segment (history.log); once it passes HISTORY_SEGMENT_MB it is sealed
+ * as history.log.NNNNNN and a fresh one is started. A background compactor
+ * keeps each paste's first entry plus its newest HISTORY_KEEP_VERSIONS entries.
+ * Each roll merges the newest run of sealed segments while the result stays
+ * under HISTORY_COMPACTED_MB; older segments are left alone until half their
+ * bytes are superseded. A roll therefore rewrites a bounded amount of history,
+ * and appends stay O(1) however large history grows. Each segment keeps its
+ * live bytes and the pastes with lines in it up to date as lines are appended
+ * or superseded, so neither planning nor rewriting walks the whole index.
+ * The segments are scanned once at startup into an in-memory index, which also
+ * keeps a summary of each paste in order of creation, so a page of the history
+ * listing is read from memory without touching the log.
  */
 public class StorageHistory {
-    private static final String HISTORY_FILE = "../data/history.log";
-    private static final int MAX_HISTORY_ENTRIES = 500;
+    private static final String DATA_DIR = "../data";
+    private static final String HISTORY_FILE = DATA_DIR + "/history.log";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("^history\\.log\\.(\\d{6})$");
+    private static final long SEGMENT_MAX_BYTES = MainServer.getEnvInt("HISTORY_SEGMENT_MB", 4) * 1024L * 1024L;
+    private static final int KEEP_VERSIONS = MainServer.getEnvInt("HISTORY_KEEP_VERSIONS", 50);
+    // Largest merged segment compaction produces; bigger ones are only rewritten once mostly stale
+    private static final long COMPACTED_MAX_BYTES = MainServer.getEnvInt("HISTORY_COMPACTED_MB", 32) * 1024L * 1024L;
     private static final ReentrantLock historyLock = new ReentrantLock();
     
+    // Per-ID summary plus the location of each of that ID's lines
+    private static final ConcurrentHashMap<String, IdIndex> index = new ConcurrentHashMap<>();
+    private static volatile boolean indexLoaded = false;
+    // Every paste's index entry in order of its first line, guarded by historyLock
+    private static final ArrayList<IdIndex> listing = new ArrayList<>();
+    
+    // Segments by number, oldest first; the last one is the active segment
+    private static final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private static Segment activeSegment;
+    private static FileChannel appendChannel;
+    
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "history-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+    
+    static {
+        Metrics.gauge("paste_history_log_bytes", "Size of the history log, all segments", StorageHistory::logBytes);
+        Metrics.gauge("paste_history_pastes", "Pastes with history entries", () -> index.size());
+    }
+    
     /**
-     * Append a history entry to the log
+     * One history file. Sealed segments never change again until compaction replaces them.
      */
-    public static void append(String id, String action, int version, String creatorIp, String note) {
+    private static final class Segment {
+        final int number;
+        Path path;
+        FileChannel reader;
+        // Bytes of the lines compaction would keep, and each paste with lines here once; guarded by historyLock
+        long liveBytes;
+        final List<IdIndex> pastes = new ArrayList<>();
+        
+        Segment(int number, Path path) {
+            this.number = number;
+            this.path = path;
+        }
+        
+        void openReader() throws IOException {
+            reader = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        
+        void closeReader() {
+            try {
+                if (reader != null) reader.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+    
+    /**
+     * Index entry for one paste: latest state is read lock-free,
+     * line locations and the listing summary are only touched under historyLock
+     */
+    private static final class IdIndex {
+        final String id;
+        volatile int latestVersion;
+        volatile boolean deleted;
+        volatile String latestAction;
+        
+        // The first line, which compaction always keeps, as the listing shows it
+        int listingPosition;
+        HistoryRecord first;
+        long createdMillis;
+        
+        int[] segmentNumbers = new int[4];
+        long[] offsets = new long[4];
+        int[] lengths = new int[4];
+        int size;
+        
+        IdIndex(String id) {
+            this.id = id;
+        }
+        
+        void addLine(int segment, long offset, int length) {
+            if (size == offsets.length) {
+                segmentNumbers = Arrays.copyOf(segmentNumbers, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            segmentNumbers[size] = segment;
+            offsets[size] = offset;
+            lengths[size] = length;
+            size++;
+        }
+    }
+    
+    /**
+     * Listing filters; null fields match everything
+     */
+    public static final class Filter {
+        String action;      // latest action: create, update or delete
+        Boolean deleted;
+        String creatorIp;
+        long since = Long.MIN_VALUE; // creation time range in epoch millis, inclusive
+        long until = Long.MAX_VALUE;
+        
+        boolean matches(IdIndex idIndex) {
+            return (action == null || action.equals(idIndex.latestAction))
+                && (deleted == null || deleted == idIndex.deleted)
+                && (creatorIp == null || creatorIp.equals(idIndex.first.creatorIp))
+                && idIndex.createdMillis <= until;
+        }
+    }
+    
+    /**
+     * Build the index from the existing segments; called once at startup
+     */
+    public static void initialize() {
         historyLock.lock();
         try {
-            // Ensure history file exists
-            File file = new File(HISTORY_FILE);
-            if (!file.exists()) {
-                file.createNewFile();
+            ensureIndexLoaded();
+            ServerLogger.log("History index loaded: " + index.size() + " pastes in " + segments.size() + " segment(s)");
+        } catch (IOException e) {
+            ServerLogger.logError("Failed to load history index", e);
+        } finally {
+            historyLock.unlock();
+        }
+    }
+    
+    /**
+     * Caller holds historyLock
+     */
+    private static void ensureIndexLoaded() throws IOException {
+        if (indexLoaded) {
+            return;
+        }
+        
+        // Sealed segments in age order, then the active log
+        List<Integer> sealed = new ArrayList<>();
+        File[] files = new File(DATA_DIR).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher m = SEGMENT_NAME.matcher(file.getName());
+                if (m.matches()) {
+                    sealed.add(Integer.parseInt(m.group(1)));
+                }
+            }
+        }
+        Collections.sort(sealed);
+        for (int number : sealed) {
+            Segment segment = new Segment(number, sealedPath(number));
+            segment.openReader();
+            segments.put(number, segment);
+            scanSegment(segment);
+        }
+        
+        int activeNumber = sealed.isEmpty() ? 1 : sealed.get(sealed.size() - 1) + 1;
+        openActiveSegment(activeNumber);
+        scanSegment(activeSegment);
+        
+        indexLoaded = true;
+        scheduleCompactionIfNeeded();
+    }
+    
+    private static Path sealedPath(int number) {
+        return Paths.get(HISTORY_FILE + "." + String.format("%06d", number));
+    }
+    
+    private static void openActiveSegment(int number) throws IOException {
+        Path path = Paths.get(HISTORY_FILE);
+        appendChannel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeSegment = new Segment(number, path);
+        activeSegment.openReader();
+        segments.put(number, activeSegment);
+    }
+    
+    /**
+     * Receives each line of a segment, without its newline
+     */
+    private interface LineVisitor {
+        void line(long offset, byte[] data, int start, int length) throws IOException;
+    }
+    
+    /**
+     * Single sequential pass over a segment file, line by line. A line is handed
+     * over straight from the read buffer unless it spans two reads.
+     * @return whether the file ends in a partial line (e.g. after a crash)
+     */
+    private static boolean scanLines(Path path, LineVisitor visitor) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] buffer = new byte[64 * 1024];
+            byte[] spill = new byte[256];
+            int spillLength = 0;
+            long position = 0;
+            long lineStart = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        if (spillLength == 0) {
+                            visitor.line(lineStart, buffer, start, i - start);
+                        } else {
+                            spill = append(spill, spillLength, buffer, start, i - start);
+                            visitor.line(lineStart, spill, 0, spillLength + i - start);
+                            spillLength = 0;
+                        }
+                        start = i + 1;
+                        lineStart = position + i + 1;
+                    }
+                }
+                spill = append(spill, spillLength, buffer, start, read - start);
+                spillLength += read - start;
+                position += read;
             }
             
-            // Build JSON entry
-            StringBuilder json = new StringBuilder();
-            json.append("{");
-            json.append("\"id\":\"").append(id).append("\",");
-            json.append("\"timestamp\":\"").append(Instant.now().toString()).append("\",");
-            json.append("\"creator_ip\":\"").append(creatorIp != null ? creatorIp : "unknown").append("\",");
-            json.append("\"version\":").append(version).append(",");
-            json.append("\"action\":\"").append(action).append("\",");
-            json.append("\"deleted\":").append("delete".equals(action) ? "true" : "false");
-            if (note != null && !note.isEmpty()) {
-                json.append(",\"note\":").append(Utils.toJsonString(note));
+            if (spillLength > 0) {
+                visitor.line(lineStart, spill, 0, spillLength);
+                return true;
+            }
+            return false;
+        }
+    }
+    
+    private static byte[] append(byte[] spill, int spillLength, byte[] data, int start, int length) {
+        if (spillLength + length > spill.length) {
+            spill = Arrays.copyOf(spill, Math.max(spill.length * 2, spillLength + length));
+        }
+        System.arraycopy(data, start, spill, spillLength, length);
+        return spill;
+    }
+    
+    /**
+     * Record where each ID's lines live in one segment
+     */
+    private static void scanSegment(Segment segment) throws IOException {
+        boolean partial = scanLines(segment.path, (offset, data, start, length) -> {
+            HistoryRecord record = parseLine(data, start, length);
+            if (record != null) {
+                indexLine(segment, offset, length, record);
+            }
+        });
+        
+        // Terminate a partial last line so appends start clean
+        if (partial && segment == activeSegment) {
+            writeFully(appendChannel, ByteBuffer.wrap(new byte[] { '\n' }));
+        }
+    }
+    
+    private static void indexLine(Segment segment, long offset, int length, HistoryRecord record) {
+        IdIndex idIndex = index.computeIfAbsent(record.id, IdIndex::new);
+        if (idIndex.size == 0) {
+            addToListing(idIndex, record);
+        }
+        // A paste's lines are in segment order, so only its first line in a segment is new there
+        if (idIndex.size == 0 || idIndex.segmentNumbers[idIndex.size - 1] != segment.number) {
+            segment.pastes.add(idIndex);
+        }
+        idIndex.addLine(segment.number, offset, length);
+        segment.liveBytes += length + 1;
+        
+        // The new line pushes the oldest of the newest KEEP_VERSIONS out, unless that is the first line
+        int superseded = idIndex.size - 1 - KEEP_VERSIONS;
+        if (superseded > 0) {
+            Segment old = segments.get(idIndex.segmentNumbers[superseded]);
+            if (old != null) {
+                old.liveBytes -= idIndex.lengths[superseded] + 1;
+            }
+        }
+        idIndex.latestVersion = record.version;
+        idIndex.deleted = record.deleted;
+        idIndex.latestAction = record.action;
+    }
+    
+    /**
+     * Record a paste's first entry as its listing row
+     * Caller holds historyLock
+     */
+    private static void addToListing(IdIndex idIndex, HistoryRecord first) {
+        idIndex.listingPosition = listing.size();
+        idIndex.first = first;
+        idIndex.createdMillis = first.timeMillis();
+        listing.add(idIndex);
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    private static byte[] readLineAt(int segmentNumber, long offset, int length) throws IOException {
+        Segment segment = segments.get(segmentNumber);
+        if (segment == null) {
+            throw new IOException("Missing history segment " + segmentNumber);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (segment.reader.read(buffer, offset + buffer.position()) == -1) {
+                break;
             }
-            json.append("}");
+        }
+        return buffer.position() == length ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+    }
+    
+    /**
+     * Append a history entry to the log
+     */
+    public static void append(String id, String action, int version, String creatorIp, String note) {
+        historyLock.lock();
+        try {
+            ensureIndexLoaded();
+            
+            HistoryRecord record = new HistoryRecord(id, Instant.now().toString(),
+                creatorIp != null ? creatorIp : "unknown", version, action, "delete".equals(action),
+                note != null && !note.isEmpty() ? note : null);
             
-            // Append to file
-            try (FileOutputStream fos = new FileOutputStream(HISTORY_FILE, true)) {
-                fos.write(json.toString().getBytes("UTF-8"));
-                fos.write('\n');
+            // Write the JSON line to the active segment and index it
+            long offset = appendChannel.size();
+            int length;
+            try (JsonWriter json = JsonWriter.buffered()) {
+                record.writeJson(json);
+                json.newline();
+                length = json.size();
+                writeFully(appendChannel, json.toByteBuffer());
             }
+            indexLine(activeSegment, offset, length - 1, record);
             
-            ServerLogger.log("History: " + action + " for paste " + id + " by " + creatorIp);
+            ServerLogger.log(() -> "History: " + action + " for paste " + id + " by " + creatorIp);
             
-            // Cap history size if needed
-            capHistory();
+            // Start a new segment once the active one is full
+            if (offset + length >= SEGMENT_MAX_BYTES) {
+                rollSegment();
+            }
             
         } catch (Exception e) {
             ServerLogger.logError("Failed to append history for " + id, e);
@@ -58,65 +379,287 @@ public class StorageHistory {
     }
     
     /**
-     * Read all history entries (up to MAX_HISTORY_ENTRIES, newest first)
+     * Seal the active segment under its number and open a new active log
+     * Caller holds historyLock
      */
-    public static List<Map<String, Object>> readAll() {
+    private static void rollSegment() throws IOException {
+        Segment sealed = activeSegment;
+        appendChannel.close();
+        sealed.closeReader();
+        
+        Path sealedPath = sealedPath(sealed.number);
+        Files.move(sealed.path, sealedPath, StandardCopyOption.ATOMIC_MOVE);
+        sealed.path = sealedPath;
+        sealed.openReader();
+        
+        openActiveSegment(sealed.number + 1);
+        ServerLogger.log("History segment " + sealed.number + " sealed");
+        
+        scheduleCompactionIfNeeded();
+    }
+    
+    /**
+     * Look for work whenever a segment is sealed
+     * Caller holds historyLock
+     */
+    private static void scheduleCompactionIfNeeded() {
+        if (segments.size() >= 2 && compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(StorageHistory::compact);
+        }
+    }
+    
+    /**
+     * Whether the line at position i of a paste's lines survives compaction: its
+     * first entry (creation, used by the history listing) or one of its newest
+     * KEEP_VERSIONS entries
+     */
+    private static boolean survives(IdIndex idIndex, int i) {
+        return i == 0 || i >= idIndex.size - KEEP_VERSIONS;
+    }
+    
+    /**
+     * Offsets of the surviving lines of one segment, sorted, with the offsets
+     * they get in the compacted file once it is written
+     */
+    private static final class Survivors {
+        long[] offsets = new long[64];
+        long[] newOffsets;
+        int size;
+        
+        void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+        
+        /**
+         * Position of a line among the survivors, or -1 if it is dropped
+         */
+        int find(long offset) {
+            int i = Arrays.binarySearch(offsets, 0, size, offset);
+            return i >= 0 ? i : -1;
+        }
+    }
+    
+    /**
+     * Compact the newest run of sealed segments, merging them while the result
+     * stays under COMPACTED_MAX_BYTES, and rewrite on its own any older segment
+     * that is mostly superseded. Survivors are decided from the index, and each
+     * group is streamed to its new file in one pass, so memory and I/O are bounded
+     * by the segments rewritten, not the whole history. Reading and writing happen
+     * outside historyLock; planning and the swap hold it, and only touch the
+     * pastes with lines in the group.
+     */
+    private static void compact() {
+        try {
+            for (List<Segment> group : planCompaction()) {
+                compactGroup(group);
+            }
+        } catch (Exception e) {
+            ServerLogger.logError("History compaction failed", e);
+        } finally {
+            compactionScheduled.set(false);
+        }
+    }
+    
+    /**
+     * Groups of adjacent sealed segments to compact, each oldest first
+     */
+    private static List<List<Segment>> planCompaction() throws IOException {
         historyLock.lock();
         try {
-            File file = new File(HISTORY_FILE);
-            if (!file.exists()) {
-                return new ArrayList<>();
+            List<Segment> sealed = new ArrayList<>();
+            for (Segment segment : segments.values()) {
+                if (segment != activeSegment) {
+                    sealed.add(segment);
+                }
             }
             
-            // Read all lines
-            List<String> lines = Files.readAllLines(Paths.get(HISTORY_FILE));
-            
-            // Parse JSON lines and compute deleted status per ID
-            Map<String, Boolean> deletedStatusMap = new HashMap<>();
-            List<Map<String, Object>> allEntries = new ArrayList<>();
-            
-            for (String line : lines) {
-                if (line.trim().isEmpty()) continue;
-                
-                Map<String, Object> entry = parseJsonLine(line);
-                if (entry != null) {
-                    allEntries.add(entry);
-                    String id = (String) entry.get("id");
-                    // Track if this ID has been deleted (last action wins)
-                    Boolean deleted = (Boolean) entry.get("deleted");
-                    deletedStatusMap.put(id, deleted);
+            List<List<Segment>> groups = new ArrayList<>();
+            List<Segment> newest = new ArrayList<>();
+            long newestLive = 0;
+            int i = sealed.size() - 1;
+            for (; i >= 0; i--) {
+                long live = sealed.get(i).liveBytes;
+                if (!newest.isEmpty() && newestLive + live > COMPACTED_MAX_BYTES) {
+                    break;
+                }
+                newest.add(0, sealed.get(i));
+                newestLive += live;
+            }
+            if (newest.size() > 1 || (newest.size() == 1 && isMostlyStale(newest.get(0), newestLive))) {
+                groups.add(newest);
+            }
+            for (; i >= 0; i--) {
+                Segment segment = sealed.get(i);
+                if (isMostlyStale(segment, segment.liveBytes)) {
+                    groups.add(Collections.singletonList(segment));
+                }
+            }
+            return groups;
+        } finally {
+            historyLock.unlock();
+        }
+    }
+    
+    private static boolean isMostlyStale(Segment segment, long liveBytes) throws IOException {
+        return liveBytes < segment.reader.size() / 2;
+    }
+    
+    /**
+     * Rewrite adjacent sealed segments as one, under the newest one's number
+     */
+    private static void compactGroup(List<Segment> group) throws IOException {
+        // Survivors per segment, and the pastes with lines in the group, as the index has them now.
+        // Later lines only go to the active segment, so this stays true while the group is read.
+        Map<Integer, Survivors> survivors = new HashMap<>();
+        Set<IdIndex> touched = new HashSet<>();
+        historyLock.lock();
+        try {
+            for (Segment segment : group) {
+                survivors.put(segment.number, new Survivors());
+                touched.addAll(segment.pastes);
+            }
+            for (IdIndex idIndex : touched) {
+                for (int i = 0; i < idIndex.size; i++) {
+                    Survivors kept = survivors.get(idIndex.segmentNumbers[i]);
+                    if (kept != null && survives(idIndex, i)) {
+                        kept.add(idIndex.offsets[i]);
+                    }
                 }
             }
+        } finally {
+            historyLock.unlock();
+        }
+        for (Survivors kept : survivors.values()) {
+            Arrays.sort(kept.offsets, 0, kept.size);
+            kept.newOffsets = new long[kept.size];
+        }
+        
+        // One sequential pass: survivors are copied in their original order
+        Segment newest = group.get(group.size() - 1);
+        Path compactedPath = sealedPath(newest.number);
+        Path tempPath = Paths.get(compactedPath + ".tmp");
+        long[] counts = new long[2]; // lines read, lines kept
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            long[] written = new long[1];
+            for (Segment segment : group) {
+                Survivors kept = survivors.get(segment.number);
+                int[] next = new int[1];
+                scanLines(segment.path, (offset, data, start, length) -> {
+                    counts[0]++;
+                    while (next[0] < kept.size && kept.offsets[next[0]] < offset) {
+                        next[0]++;
+                    }
+                    if (next[0] < kept.size && kept.offsets[next[0]] == offset) {
+                        kept.newOffsets[next[0]++] = written[0];
+                        out.write(data, start, length);
+                        out.write('\n');
+                        written[0] += length + 1;
+                        counts[1]++;
+                    }
+                });
+            }
+            out.flush();
+            channel.force(true);
+        }
+        
+        // Swap: the compacted file replaces the newest segment of the group, the rest are deleted
+        historyLock.lock();
+        try {
+            for (Segment segment : group) {
+                segment.closeReader();
+                segments.remove(segment.number);
+            }
             
-            // Build result with computed deleted status
-            List<Map<String, Object>> result = new ArrayList<>();
+            Files.move(tempPath, compactedPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            Segment compacted = new Segment(newest.number, compactedPath);
+            compacted.openReader();
+            segments.put(compacted.number, compacted);
             
-            // Get unique IDs by their first appearance (create action)
-            Map<String, Map<String, Object>> firstAppearance = new LinkedHashMap<>();
-            for (Map<String, Object> entry : allEntries) {
-                String id = (String) entry.get("id");
-                if (!firstAppearance.containsKey(id)) {
-                    firstAppearance.put(id, entry);
+            // Point surviving lines at the new file and drop the rest, keeping their order.
+            // Dropped lines sit between a paste's first and newest lines, so the rest keep
+            // their standing; lines superseded since the plan count as stale in the new file.
+            for (IdIndex idIndex : touched) {
+                int size = 0;
+                for (int i = 0; i < idIndex.size; i++) {
+                    Survivors kept = survivors.get(idIndex.segmentNumbers[i]);
+                    long offset = idIndex.offsets[i];
+                    if (kept != null) {
+                        int position = kept.find(offset);
+                        if (position < 0) {
+                            continue;
+                        }
+                        offset = kept.newOffsets[position];
+                    }
+                    idIndex.segmentNumbers[size] = kept != null ? compacted.number : idIndex.segmentNumbers[i];
+                    idIndex.offsets[size] = offset;
+                    idIndex.lengths[size] = idIndex.lengths[i];
+                    size++;
+                }
+                idIndex.size = size;
+                boolean inCompacted = false;
+                for (int i = 0; i < size; i++) {
+                    if (idIndex.segmentNumbers[i] == compacted.number) {
+                        if (!inCompacted) {
+                            compacted.pastes.add(idIndex);
+                            inCompacted = true;
+                        }
+                        if (survives(idIndex, i)) {
+                            compacted.liveBytes += idIndex.lengths[i] + 1;
+                        }
+                    }
                 }
             }
             
-            // Process newest to oldest unique IDs
-            List<String> ids = new ArrayList<>(firstAppearance.keySet());
-            for (int i = ids.size() - 1; i >= 0 && result.size() < MAX_HISTORY_ENTRIES; i--) {
-                String id = ids.get(i);
-                Map<String, Object> entry = new HashMap<>(firstAppearance.get(id));
-                
-                // Apply current deleted status
-                entry.put("deleted", deletedStatusMap.get(id));
-                
-                result.add(entry);
+            for (Segment segment : group) {
+                if (segment.number != compacted.number) {
+                    Files.deleteIfExists(segment.path);
+                }
             }
+        } finally {
+            historyLock.unlock();
+        }
+        
+        ServerLogger.log("History compacted " + group.size() + " segment(s) into " + newest.number
+            + ": kept " + counts[1] + " of " + counts[0] + " entries");
+    }
+    
+    /**
+     * One page of the history listing, newest paste first: up to limit pastes
+     * matching filter, starting after the paste given as cursor (null for the first page).
+     * Pastes are listed in creation order, so a time range stops the scan at its start.
+     * @throws IllegalArgumentException if the cursor is not a paste with history
+     */
+    public static List<HistoryRecord> list(String after, int limit, Filter filter) throws IOException {
+        historyLock.lock();
+        try {
+            ensureIndexLoaded();
             
-            return result;
+            int start = listing.size() - 1;
+            if (after != null) {
+                IdIndex cursor = index.get(after);
+                if (cursor == null) {
+                    throw new IllegalArgumentException("Unknown cursor: " + after);
+                }
+                start = cursor.listingPosition - 1;
+            }
             
-        } catch (Exception e) {
-            ServerLogger.logError("Failed to read history", e);
-            return new ArrayList<>();
+            List<HistoryRecord> page = new ArrayList<>(Math.min(limit, 128));
+            for (int i = start; i >= 0 && page.size() < limit; i--) {
+                IdIndex idIndex = listing.get(i);
+                if (idIndex.createdMillis < filter.since) {
+                    break;
+                }
+                if (filter.matches(idIndex)) {
+                    page.add(idIndex.first.withDeleted(idIndex.deleted));
+                }
+            }
+            return page;
         } finally {
             historyLock.unlock();
         }
@@ -124,24 +667,24 @@ public class StorageHistory {
     
     /**
      * Read all history entries for a specific ID
+     * Only that ID's lines are read, straight from their indexed locations
      */
-    public static List<Map<String, Object>> readById(String id) {
+    public static List<HistoryRecord> readById(String id) {
         historyLock.lock();
         try {
-            File file = new File(HISTORY_FILE);
-            if (!file.exists()) {
-                return new ArrayList<>();
-            }
+            ensureIndexLoaded();
             
-            List<String> lines = Files.readAllLines(Paths.get(HISTORY_FILE));
-            List<Map<String, Object>> result = new ArrayList<>();
+            List<HistoryRecord> result = new ArrayList<>();
+            IdIndex idIndex = index.get(id);
+            if (idIndex == null) {
+                return result;
+            }
             
-            for (String line : lines) {
-                if (line.trim().isEmpty()) continue;
-                
-                Map<String, Object> entry = parseJsonLine(line);
-                if (entry != null && id.equals(entry.get("id"))) {
-                    result.add(entry);
+            for (int i = 0; i < idIndex.size; i++) {
+                byte[] line = readLineAt(idIndex.segmentNumbers[i], idIndex.offsets[i], idIndex.lengths[i]);
+                HistoryRecord record = parseLine(line, 0, line.length);
+                if (record != null) {
+                    result.add(record);
                 }
             }
             
@@ -155,122 +698,102 @@ public class StorageHistory {
         }
     }
     
+    /**
+     * Highest numeric paste ID with any history, or 0
+     */
+    public static long getHighestId() {
+        historyLock.lock();
+        try {
+            ensureIndexLoaded();
+        } catch (IOException e) {
+            ServerLogger.logError("Failed to load history index", e);
+        } finally {
+            historyLock.unlock();
+        }
+        
+        long highest = 0;
+        for (String id : index.keySet()) {
+            try {
+                highest = Math.max(highest, Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                // Not a numeric ID
+            }
+        }
+        return highest;
+    }
+    
+    /**
+     * Latest version recorded for a paste, or 0 if it has no history
+     */
+    public static int getLatestVersion(String id) {
+        IdIndex idIndex = lookup(id);
+        return idIndex != null ? idIndex.latestVersion : 0;
+    }
+    
     /**
      * Check if a paste is deleted (last action is delete)
      */
     public static boolean isDeleted(String id) {
+        IdIndex idIndex = lookup(id);
+        return idIndex != null && idIndex.deleted;
+    }
+    
+    /**
+     * Bytes in all history segments, the active one included
+     */
+    static long logBytes() {
         historyLock.lock();
         try {
-            List<Map<String, Object>> history = readById(id);
-            if (history.isEmpty()) {
-                System.out.println("DEBUG isDeleted(" + id + "): No history found, returning false");
-                return false;
+            long total = 0;
+            for (Segment segment : segments.values()) {
+                if (segment.reader != null) {
+                    total += segment.reader.size();
+                }
             }
-            
-            // Check the last action for this ID
-            Map<String, Object> lastEntry = history.get(history.size() - 1);
-            Boolean deleted = (Boolean) lastEntry.get("deleted");
-            boolean result = deleted != null && deleted;
-            System.out.println("DEBUG isDeleted(" + id + "): history size=" + history.size() + 
-                             ", last entry deleted field=" + deleted + 
-                             ", returning " + result);
-            return result;
-            
+            return total;
+        } catch (IOException e) {
+            return -1;
         } finally {
             historyLock.unlock();
         }
     }
     
+    private static IdIndex lookup(String id) {
+        if (!indexLoaded) {
+            initialize();
+        }
+        return index.get(id);
+    }
+    
     /**
      * Mark a paste as deleted by appending a delete action
      */
     public static void markDelete(String id, String deleterIp) {
         // Get current version
-        int version = 1;
-        List<Map<String, Object>> history = readById(id);
-        if (!history.isEmpty()) {
-            Map<String, Object> latest = history.get(history.size() - 1);
-            version = ((Number) latest.get("version")).intValue();
+        int version = getLatestVersion(id);
+        if (version == 0) {
+            version = 1;
         }
         
         append(id, "delete", version, deleterIp, null);
     }
     
     /**
-     * Cap history to MAX_HISTORY_ENTRIES by rewriting file
+     * Parse one log line; null for a blank or unreadable line, which is skipped
      */
-    private static void capHistory() {
-        try {
-            File file = new File(HISTORY_FILE);
-            if (!file.exists()) return;
-            
-            List<String> lines = Files.readAllLines(Paths.get(HISTORY_FILE));
-            
-            if (lines.size() > MAX_HISTORY_ENTRIES) {
-                // Keep newest MAX_HISTORY_ENTRIES
-                List<String> keep = lines.subList(lines.size() - MAX_HISTORY_ENTRIES, lines.size());
-                
-                // Write to temp file
-                String tempPath = HISTORY_FILE + ".tmp";
-                try (FileWriter writer = new FileWriter(tempPath)) {
-                    for (String line : keep) {
-                        writer.write(line);
-                        writer.write('\n');
-                    }
-                }
-                
-                // Atomic rename
-                Files.move(Paths.get(tempPath), Paths.get(HISTORY_FILE),
-                          StandardCopyOption.REPLACE_EXISTING,
-                          StandardCopyOption.ATOMIC_MOVE);
-                
-                ServerLogger.log("History capped to " + MAX_HISTORY_ENTRIES + " entries");
-            }
-            
-        } catch (Exception e) {
-            ServerLogger.logError("Failed to cap history", e);
+    private static HistoryRecord parseLine(byte[] data, int start, int length) {
+        int end = start + length;
+        while (start < end && (data[start] == ' ' || data[start] == '\t' || data[start] == '\r')) {
+            start++;
+        }
+        if (start == end) {
+            return null;
         }
-    }
-    
-    /**
-     * Parse a JSON line into a Map
-     */
-    private static Map<String, Object> parseJsonLine(String line) {
         try {
-            Map<String, Object> map = new HashMap<>();
-            
-            // Simple JSON parser for our specific format
-            line = line.trim();
-            if (!line.startsWith("{") || !line.endsWith("}")) return null;
-            
-            line = line.substring(1, line.length() - 1); // Remove { }
-            
-            String[] pairs = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)"); // Split on comma not in quotes
-            
-            for (String pair : pairs) {
-                String[] kv = pair.split(":", 2);
-                if (kv.length != 2) continue;
-                
-                String key = kv[0].trim().replaceAll("\"", "");
-                String value = kv[1].trim();
-                
-                if (value.equals("true") || value.equals("false")) {
-                    map.put(key, Boolean.parseBoolean(value));
-                } else if (value.startsWith("\"")) {
-                    map.put(key, value.replaceAll("\"", ""));
-                } else {
-                    try {
-                        map.put(key, Integer.parseInt(value));
-                    } catch (NumberFormatException e) {
-                        map.put(key, value);
-                    }
-                }
-            }
-            
-            return map;
-            
-        } catch (Exception e) {
-            ServerLogger.logError("Failed to parse JSON line: " + line, e);
+            return HistoryRecord.parse(data, start, end - start);
+        } catch (IOException e) {
+            ServerLogger.logError("Failed to parse history line: "
+                + new String(data, start, end - start, StandardCharsets.UTF_8), e);
             return null;
         }
     }
@@ -0,0 +1,88 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UrlDecoder - Incremental decoder for application/x-www-form-urlencoded values
+ * Takes one character at a time, so a form field can be decoded while it is
+ * still arriving. '+' becomes a space; runs of %XX escapes are collected as
+ * bytes and decoded as UTF-8. A '%' not followed by two hex digits is kept as is.
+ */
+public class UrlDecoder {
+    // Escaped bytes held before decoding at most, so length() stays close to the decoded length
+    private static final int FLUSH_BYTES = 4096;
+    
+    private final StringBuilder out;
+    private byte[] pending = new byte[16];
+    private int pendingLength = 0;
+    // Characters of an escape seen so far: "%" or "%X"
+    private final StringBuilder escape = new StringBuilder(3);
+    
+    public UrlDecoder(int capacity) {
+        out = new StringBuilder(capacity);
+    }
+    
+    public void append(char c) {
+        if (escape.length() > 0) {
+            if (Character.digit(c, 16) >= 0) {
+                escape.append(c);
+                if (escape.length() == 3) {
+                    addByte(Integer.parseInt(escape.substring(1), 16));
+                    escape.setLength(0);
+                }
+                return;
+            }
+            // Not an escape after all: keep the characters literally
+            flushBytes();
+            out.append(escape);
+            escape.setLength(0);
+        }
+        if (c == '%') {
+            escape.append(c);
+        } else {
+            flushBytes();
+            out.append(c == '+' ? ' ' : c);
+        }
+    }
+    
+    /**
+     * Lower bound on the characters decoded so far: undecoded escape bytes
+     * make at least one character per three
+     */
+    public int length() {
+        return out.length() + pendingLength / 3;
+    }
+    
+    public String finish() {
+        flushBytes();
+        out.append(escape);
+        escape.setLength(0);
+        return out.toString();
+    }
+    
+    private void addByte(int value) {
+        if (pendingLength == FLUSH_BYTES) {
+            // Decode a long run early, up to the start of its last (maybe incomplete) character
+            int end = pendingLength - 1;
+            while (end > 0 && (pending[end] & 0xC0) == 0x80) {
+                end--;
+            }
+            if (end > 0) {
+                out.append(new String(pending, 0, end, StandardCharsets.UTF_8));
+                System.arraycopy(pending, end, pending, 0, pendingLength - end);
+                pendingLength -= end;
+            }
+        }
+        if (pendingLength == pending.length) {
+            byte[] grown = new byte[pending.length * 2];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+        pending[pendingLength++] = (byte) value;
+    }
+    
+    private void flushBytes() {
+        if (pendingLength > 0) {
+            out.append(new String(pending, 0, pendingLength, StandardCharsets.UTF_8));
+            pendingLength = 0;
+        }
+    }
+}
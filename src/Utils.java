@@ -1,3 +1,10 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Utils - Utility functions for JSON encoding and HTML escaping
  */
@@ -37,48 +44,19 @@ public class Utils {
     
     /**
      * Convert string to JSON string format (with quotes and escaping)
+     * Code that writes JSON out should use JsonWriter directly, which skips this String
      */
     public static String toJsonString(String text) {
         if (text == null) return "\"\"";
         
-        StringBuilder sb = new StringBuilder();
-        sb.append('"');
-        
-        for (int i = 0; i < text.length(); i++) {
-            char c = text.charAt(i);
-            switch (c) {
-                case '"':
-                    sb.append("\\\"");
-                    break;
-                case '\\':
-                    sb.append("\\\\");
-                    break;
-                case '\b':
-                    sb.append("\\b");
-                    break;
-                case '\f':
-                    sb.append("\\f");
-                    break;
-                case '\n':
-                    sb.append("\\n");
-                    break;
-                case '\r':
-                    sb.append("\\r");
-                    break;
-                case '\t':
-                    sb.append("\\t");
-                    break;
-                default:
-                    if (c < 32 || c > 126) {
-                        sb.append(String.format("\\u%04x", (int) c));
-                    } else {
-                        sb.append(c);
-                    }
-            }
+        try (JsonWriter json = JsonWriter.buffered()) {
+            json.value(text);
+            ByteBuffer bytes = json.toByteBuffer();
+            return new String(bytes.array(), 0, bytes.remaining(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // A buffered writer does no I/O
+            throw new UncheckedIOException(e);
         }
-        
-        sb.append('"');
-        return sb.toString();
     }
     
     /**
@@ -138,6 +116,76 @@ public class Utils {
         return sb.toString();
     }
     
+    /**
+     * Parse a flat JSON object (no nested objects or arrays) into raw values
+     * Strings are unescaped; numbers, booleans and null are kept as their text
+     * @return the fields, or null if the text is not such an object
+     */
+    public static Map<String, String> parseFlatJson(String json) {
+        Map<String, String> fields = new HashMap<>();
+        int i = skipWhitespace(json, 0);
+        if (i >= json.length() || json.charAt(i) != '{') return null;
+        i = skipWhitespace(json, i + 1);
+        if (i < json.length() && json.charAt(i) == '}') return fields;
+        
+        while (i < json.length()) {
+            if (json.charAt(i) != '"') return null;
+            int keyEnd = findStringEnd(json, i);
+            if (keyEnd < 0) return null;
+            String key = unescapeJson(json.substring(i + 1, keyEnd));
+            
+            i = skipWhitespace(json, keyEnd + 1);
+            if (i >= json.length() || json.charAt(i) != ':') return null;
+            i = skipWhitespace(json, i + 1);
+            if (i >= json.length()) return null;
+            
+            String value;
+            if (json.charAt(i) == '"') {
+                int valueEnd = findStringEnd(json, i);
+                if (valueEnd < 0) return null;
+                value = unescapeJson(json.substring(i + 1, valueEnd));
+                i = valueEnd + 1;
+            } else {
+                int start = i;
+                while (i < json.length() && ",} \t\r\n".indexOf(json.charAt(i)) < 0) {
+                    i++;
+                }
+                value = json.substring(start, i);
+                if (value.isEmpty() || value.charAt(0) == '{' || value.charAt(0) == '[') return null;
+            }
+            fields.put(key, value);
+            
+            i = skipWhitespace(json, i);
+            if (i >= json.length()) return null;
+            if (json.charAt(i) == '}') return fields;
+            if (json.charAt(i) != ',') return null;
+            i = skipWhitespace(json, i + 1);
+        }
+        return null;
+    }
+    
+    private static int skipWhitespace(String text, int i) {
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+    
+    /**
+     * Index of the closing quote of the string literal opening at start, or -1
+     */
+    private static int findStringEnd(String text, int start) {
+        for (int i = start + 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
     /**
      * Parse URL-encoded form data and extract the 'text' parameter
      */
@@ -159,29 +207,35 @@ public class Utils {
     }
     
     /**
-     * URL decode a string (decode %XX and + to space)
+     * URL decode a string (decode %XX as UTF-8 and + to space)
      */
     public static String urlDecode(String encoded) {
         if (encoded == null) return "";
         
-        StringBuilder sb = new StringBuilder();
+        UrlDecoder decoder = new UrlDecoder(encoded.length());
         for (int i = 0; i < encoded.length(); i++) {
-            char c = encoded.charAt(i);
-            if (c == '+') {
-                sb.append(' ');
-            } else if (c == '%' && i + 2 < encoded.length()) {
-                try {
-                    String hex = encoded.substring(i + 1, i + 3);
-                    int value = Integer.parseInt(hex, 16);
-                    sb.append((char) value);
-                    i += 2;
-                } catch (NumberFormatException e) {
-                    sb.append(c);
-                }
-            } else {
-                sb.append(c);
+            decoder.append(encoded.charAt(i));
+        }
+        return decoder.finish();
+    }
+    
+    /**
+     * Parse a URL query string into decoded parameters; the first of repeated names wins
+     */
+    public static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            String name = urlDecode(equals < 0 ? param : param.substring(0, equals));
+            String value = equals < 0 ? "" : urlDecode(param.substring(equals + 1));
+            if (!name.isEmpty()) {
+                params.putIfAbsent(name, value);
             }
         }
-        return sb.toString();
+        return params;
     }
 }
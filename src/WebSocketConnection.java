@@ -0,0 +1,39 @@
+import java.io.IOException;
+
+/**
+ * WebSocketConnection - Transport-neutral handle to one WebSocket client
+ * Implemented by the blocking socket transport and by the NIO event loop
+ */
+public interface WebSocketConnection {
+    
+    /**
+     * Queue raw bytes (handshake responses or already framed data)
+     * The array may be shared with other connections and must not change afterwards
+     * @throws IOException if the connection is closed or was dropped for falling behind
+     */
+    void sendRaw(byte[] data) throws IOException;
+    
+    /**
+     * Send a single text frame
+     */
+    void sendText(String message) throws IOException;
+    
+    /**
+     * permessage-deflate settings agreed in the handshake, or null if messages go uncompressed
+     */
+    PerMessageDeflate getDeflate();
+    
+    void setDeflate(PerMessageDeflate deflate);
+    
+    /**
+     * Client IP address as a string
+     */
+    String getRemoteAddress();
+    
+    boolean isOpen();
+    
+    /**
+     * Close the connection once anything already queued has been written
+     */
+    void close();
+}
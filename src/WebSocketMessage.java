@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * WebSocketMessage - One outgoing text message, framed once for all its recipients
+ * The plain frame is built up front. Clients that negotiated permessage-deflate
+ * without server context takeover all get one compressed frame, built when
+ * the first of them needs it; a client with context takeover compresses the
+ * payload with its own deflater. Broadcasts use a message under the room lock,
+ * which also guards the lazily built frame.
+ */
+final class WebSocketMessage {
+    private final byte[] frame;
+    private final int payloadOffset;
+    private byte[] deflatedFrame;
+    
+    private WebSocketMessage(byte[] frame, int payloadOffset) {
+        this.frame = frame;
+        this.payloadOffset = payloadOffset;
+    }
+    
+    /**
+     * Text message with the given UTF-8 payload, which is copied
+     */
+    static WebSocketMessage text(ByteBuffer payload) {
+        int length = payload.remaining();
+        byte[] frame = WebSocketServer.encodeFrame(0x1, payload);
+        return new WebSocketMessage(frame, frame.length - length);
+    }
+    
+    /**
+     * The frame to queue on a connection, compressed if it agreed to that
+     */
+    byte[] frameFor(WebSocketConnection connection) throws IOException {
+        PerMessageDeflate deflate = connection.getDeflate();
+        if (deflate == null || frame.length - payloadOffset < PerMessageDeflate.MIN_SIZE) {
+            return frame;
+        }
+        if (!deflate.sharesFrames()) {
+            return deflate.deflateFrame(payload());
+        }
+        if (deflatedFrame == null) {
+            deflatedFrame = PerMessageDeflate.deflateShared(payload());
+        }
+        return deflatedFrame;
+    }
+    
+    private ByteBuffer payload() {
+        return ByteBuffer.wrap(frame, payloadOffset, frame.length - payloadOffset);
+    }
+}
@@ -1,39 +1,112 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * WebSocketServer - Handles WebSocket connections for real-time collaboration
  * Implements minimal WebSocket protocol (RFC 6455)
+ *
+ * Messages are JSON. The server sends {"type":"init","text":...,"seq":N} on
+ * connect, then {"type":"op","seq":N,"pos":...,"del":...,"ins":...} for every
+ * edit, the editor's own included. Clients send {"type":"op","base":N,...}
+ * made against the last seq they applied. An edit that can no longer be
+ * transformed is answered with {"type":"resync","text":...,"seq":N}. A
+ * message that is not an op is taken as the full new text.
+ *
+ * Outgoing messages are framed once and the same bytes are queued on every
+ * connection. Each connection drains its own bounded queue, so a slow reader
+ * never holds up the sender or the other editors; one that falls more than
+ * WS_MAX_QUEUED_MB behind is disconnected and gets a fresh init on reconnect.
+ *
+ * Each paste being edited has a Room holding its editors and document, so
+ * unrelated pastes never share a lock. A paste takes at most
+ * WS_MAX_ROOM_MEMBERS editors; further clients get 503 Service Unavailable.
+ *
+ * Clients may negotiate permessage-deflate (see PerMessageDeflate); a
+ * WebSocketMessage then gives each the plain or compressed frame it expects.
  */
 public class WebSocketServer {
-    // Store active WebSocket connections per paste ID
-    private static final ConcurrentHashMap<String, Set<Socket>> connections = new ConcurrentHashMap<>();
+    // Live editing session per paste while it has connections; the map's bin locks shard the registry
+    private static final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
     
-    public static void handleWebSocket(Socket socket, String firstLine, BufferedReader reader) {
+    // Clients one paste may have at once
+    private static final int MAX_ROOM_MEMBERS = MainServer.getEnvInt("WS_MAX_ROOM_MEMBERS", 1000);
+    
+    // Largest frame, reassembled message or inflated message accepted from a client, on either
+    // transport: a whole paste, allowing for multi-byte UTF-8 on top of the character limit
+    static final long MAX_MESSAGE_SIZE = 4L * Storage.MAX_PASTE_SIZE;
+    
+    // Unsent bytes a connection may hold before it is dropped as a slow consumer
+    static final long MAX_QUEUED_BYTES = MainServer.getEnvInt("WS_MAX_QUEUED_MB", 16) * 1024L * 1024L;
+    
+    // Drains the outbound queues of blocking connections
+    private static final ExecutorService writers = MainServer.createConnectionExecutor();
+    
+    // Pastes reported one by one in /metrics, busiest first; the total covers them all
+    private static final int MAX_REPORTED_PASTES = 100;
+    private static final Metrics.Histogram fanOut = Metrics.sizes("paste_websocket_broadcast_recipients",
+        "Connections one WebSocket message is sent to", "");
+    private static final Metrics.Histogram broadcastTime = Metrics.timer("paste_websocket_broadcast_seconds",
+        "Time to queue one WebSocket message on every connection of a paste", "");
+    static {
+        Metrics.gauge("paste_websocket_connections", "Open WebSocket connections",
+            () -> rooms.values().stream().mapToLong(Room::size).sum());
+        Metrics.gauge("paste_websocket_rooms", "Pastes with open WebSocket connections", () -> rooms.size());
+        Metrics.gauge("paste_websocket_paste_connections",
+            "Open WebSocket connections per paste, for the " + MAX_REPORTED_PASTES + " busiest pastes",
+            WebSocketServer::collectConnections);
+        Metrics.executor("websocket-writers", writers);
+    }
+    
+    public static void handleWebSocket(Socket socket, String firstLine, HttpInput in) {
+        try {
+            // An upgraded keep-alive connection must not inherit the HTTP idle timeout
+            socket.setSoTimeout(0);
+        } catch (SocketException e) {
+            // Ignore
+        }
+        SocketConnection connection = new SocketConnection(socket);
+        Map<String, String> headers;
+        try {
+            headers = HttpServer.readHeaders(in);
+        } catch (IOException e) {
+            headers = null;
+        }
+        if (headers == null) {
+            connection.close();
+            return;
+        }
+        String id = openSession(connection, firstLine, headers);
+        if (id != null) {
+            // Frames are read from the same buffered input as the handshake
+            handleWebSocketMessages(connection, socket, in, id);
+        }
+    }
+    
+    /**
+     * Validate the upgrade request, perform the handshake and register the connection
+     * Shared by the blocking and NIO transports
+     * @return the paste ID, or null if the connection was rejected and closed
+     */
+    static String openSession(WebSocketConnection connection, String firstLine, Map<String, String> headers) {
         try {
             // Parse path to get paste ID
             String[] parts = firstLine.split(" ");
             String path = parts[1];
             String id = path.substring(path.lastIndexOf("/") + 1);
             
-            // Read headers
-            String secWebSocketKey = null;
-            String origin = null;
-            String line;
-            while ((line = reader.readLine()) != null && !line.isEmpty()) {
-                if (line.toLowerCase().startsWith("sec-websocket-key:")) {
-                    secWebSocketKey = line.substring(18).trim();
-                } else if (line.toLowerCase().startsWith("origin:")) {
-                    origin = line.substring(7).trim();
-                }
-            }
+            String secWebSocketKey = headers.get("sec-websocket-key");
+            String origin = headers.get("origin");
             
             if (secWebSocketKey == null) {
-                socket.close();
-                return;
+                connection.close();
+                return null;
             }
             
             // Validate origin for security (CORS for WebSocket)
@@ -44,228 +117,529 @@ public class WebSocketServer {
                 boolean isRenderDomain = origin.startsWith("https://cn-project-6y4k.onrender.com");
                 
                 if (!isLocalhost && !isGitHubPages && !isRenderDomain) {
-                    System.out.println("WebSocket connection rejected from unauthorized origin: " + origin);
-                    socket.close();
-                    return;
+                    ServerLogger.warn("WebSocket connection rejected from unauthorized origin: " + origin);
+                    connection.close();
+                    return null;
                 }
             }
             
             // Check if paste is deleted
             if (StorageHistory.isDeleted(id)) {
                 // Send 403 Forbidden response and close connection
-                OutputStream out = socket.getOutputStream();
-                PrintWriter writer = new PrintWriter(out, false);
-                writer.print("HTTP/1.1 403 Forbidden\r\n");
-                writer.print("Content-Type: text/plain\r\n");
-                writer.print("Content-Length: 42\r\n");
-                writer.print("\r\n");
-                writer.print("This paste has been deleted (read-only).");
-                writer.flush();
-                socket.close();
-                System.out.println("WebSocket connection denied for deleted paste: " + id);
-                return;
+                String body = "This paste has been deleted (read-only).";
+                String response = "HTTP/1.1 403 Forbidden\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "Content-Length: " + body.length() + "\r\n"
+                    + "\r\n"
+                    + body;
+                connection.sendRaw(response.getBytes(StandardCharsets.UTF_8));
+                connection.close();
+                ServerLogger.log(() -> "WebSocket connection denied for deleted paste: " + id);
+                return null;
+            }
+            
+            // Refuse before the handshake when the paste is already at its limit
+            Room existing = rooms.get(id);
+            if (existing != null && existing.isFull()) {
+                sendTooManyEditors(connection, id);
+                return null;
             }
             
             // Perform WebSocket handshake
             String acceptKey = generateAcceptKey(secWebSocketKey);
+            PerMessageDeflate deflate = PerMessageDeflate.negotiate(headers.get("sec-websocket-extensions"));
+            connection.setDeflate(deflate);
             
-            OutputStream out = socket.getOutputStream();
-            PrintWriter writer = new PrintWriter(out, false);
-            writer.print("HTTP/1.1 101 Switching Protocols\r\n");
-            writer.print("Upgrade: websocket\r\n");
-            writer.print("Connection: Upgrade\r\n");
-            writer.print("Sec-WebSocket-Accept: " + acceptKey + "\r\n");
-            writer.print("\r\n");
-            writer.flush();
+            String handshake = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + acceptKey + "\r\n"
+                + (deflate != null ? "Sec-WebSocket-Extensions: " + deflate.responseHeader() + "\r\n" : "")
+                + "\r\n";
+            connection.sendRaw(handshake.getBytes(StandardCharsets.UTF_8));
             
-            // Add to connections
-            connections.computeIfAbsent(id, k -> ConcurrentHashMap.newKeySet()).add(socket);
-            System.out.println("WebSocket connected for paste: " + id);
-            
-            // Send initial content
-            String content = Storage.getPaste(id);
-            if (content != null) {
-                sendWebSocketMessage(socket, "{\"type\":\"init\",\"text\":" + Utils.toJsonString(content) + "}");
+            // Add to the paste's room, which sends the initial content and the new user count
+            if (!join(connection, id)) {
+                // Filled up since the check above
+                connection.sendRaw(closeFrame(1013, "Too many editors"));
+                connection.close();
+                if (deflate != null) {
+                    deflate.release();
+                }
+                return null;
             }
+            ServerLogger.log(() -> "WebSocket connected for paste: " + id);
             
-            // Broadcast updated user count to all clients
-            broadcastUserCount(id);
-            
-            // Handle incoming messages
-            handleWebSocketMessages(socket, id);
+            return id;
             
         } catch (Exception e) {
-            System.err.println("WebSocket error: " + e.getMessage());
-            try {
-                socket.close();
-            } catch (IOException ex) {
-                // Ignore
-            }
+            ServerLogger.warn("WebSocket error: " + e.getMessage());
+            connection.close();
+            return null;
         }
     }
     
-    private static void handleWebSocketMessages(Socket socket, String id) {
+    private static void handleWebSocketMessages(WebSocketConnection connection, Socket socket, InputStream in, String id) {
+        // A fragmented text message, collected until its final frame
+        ByteArrayOutputStream fragments = null;
+        boolean fragmentsCompressed = false;
         try {
-            InputStream in = socket.getInputStream();
-            
             while (!socket.isClosed()) {
-                // Read frame header
-                int b1 = in.read();
-                if (b1 == -1) break;
-                
-                boolean fin = (b1 & 0x80) != 0;
-                int opcode = b1 & 0x0F;
+                Frame frame = readFrame(in);
+                if (frame == null) break;
                 
                 // Opcode 8 = close
-                if (opcode == 8) break;
+                if (frame.opcode == 8) break;
                 
-                int b2 = in.read();
-                if (b2 == -1) break;
-                
-                boolean masked = (b2 & 0x80) != 0;
-                long payloadLength = b2 & 0x7F;
-                
-                // Extended payload length
-                if (payloadLength == 126) {
-                    payloadLength = (in.read() << 8) | in.read();
-                } else if (payloadLength == 127) {
-                    payloadLength = 0;
-                    for (int i = 0; i < 8; i++) {
-                        payloadLength = (payloadLength << 8) | in.read();
+                byte[] payload;
+                boolean compressed;
+                if (frame.opcode == 1) {
+                    if (!frame.fin) {
+                        fragments = new ByteArrayOutputStream();
+                        fragments.write(frame.payload, 0, frame.payload.length);
+                        fragmentsCompressed = frame.compressed;
+                        continue;
                     }
-                }
-                
-                // Read masking key
-                byte[] maskingKey = new byte[4];
-                if (masked) {
-                    in.read(maskingKey);
-                }
-                
-                // Read payload
-                byte[] payload = new byte[(int) payloadLength];
-                int totalRead = 0;
-                while (totalRead < payloadLength) {
-                    int read = in.read(payload, totalRead, (int) payloadLength - totalRead);
-                    if (read == -1) break;
-                    totalRead += read;
-                }
-                
-                // Unmask payload
-                if (masked) {
-                    for (int i = 0; i < payload.length; i++) {
-                        payload[i] = (byte) (payload[i] ^ maskingKey[i % 4]);
+                    payload = frame.payload;
+                    compressed = frame.compressed;
+                } else if (frame.opcode == 0 && fragments != null) {
+                    if (fragments.size() + (long) frame.payload.length > MAX_MESSAGE_SIZE) {
+                        throw new MessageTooBigException();
+                    }
+                    fragments.write(frame.payload, 0, frame.payload.length);
+                    if (!frame.fin) {
+                        continue;
                     }
+                    payload = fragments.toByteArray();
+                    compressed = fragmentsCompressed;
+                    fragments = null;
+                } else {
+                    // Binary, ping and pong frames are ignored
+                    continue;
                 }
                 
-                // Only handle text frames (opcode 1)
-                if (opcode == 1) {
-                    String message = new String(payload, "UTF-8");
-                    
-                    // Get client IP
-                    String clientIp = socket.getInetAddress().getHostAddress();
-                    
-                    // Update storage
-                    Storage.updatePaste(id, message, clientIp);
-                    
-                    // Broadcast to all clients except sender
-                    broadcastExcept(id, message, socket);
+                PerMessageDeflate deflate = connection.getDeflate();
+                if (compressed && deflate == null) {
+                    break;
                 }
+                String message = compressed
+                    ? deflate.inflate(payload, MAX_MESSAGE_SIZE)
+                    : new String(payload, StandardCharsets.UTF_8);
+                onTextMessage(connection, id, message);
+            }
+        } catch (MessageTooBigException e) {
+            try {
+                connection.sendRaw(closeFrame(1009, "Message too big"));
+            } catch (IOException ex) {
+                // Closing anyway
             }
         } catch (IOException e) {
             // Connection closed
         } finally {
-            // Remove from connections
-            Set<Socket> sockets = connections.get(id);
-            if (sockets != null) {
-                sockets.remove(socket);
-                System.out.println("WebSocket disconnected for paste: " + id);
-                
-                // Broadcast updated user count to remaining clients
-                broadcastUserCount(id);
+            onClose(connection, id);
+            connection.close();
+        }
+    }
+    
+    /**
+     * One decoded client frame with its payload unmasked
+     */
+    static final class Frame {
+        final boolean fin;
+        // RSV1: the message was compressed with permessage-deflate
+        final boolean compressed;
+        final int opcode;
+        final byte[] payload;
+        
+        Frame(boolean fin, boolean compressed, int opcode, byte[] payload) {
+            this.fin = fin;
+            this.compressed = compressed;
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+    }
+    
+    /**
+     * A frame or message longer than MAX_MESSAGE_SIZE, answered with close code 1009
+     */
+    static final class MessageTooBigException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        MessageTooBigException() {
+            super("WebSocket message larger than " + MAX_MESSAGE_SIZE + " bytes");
+        }
+    }
+    
+    /**
+     * Read one frame from a blocking stream
+     * @return the frame, or null at end of stream
+     * @throws MessageTooBigException before allocating a payload over MAX_MESSAGE_SIZE
+     */
+    static Frame readFrame(InputStream in) throws IOException {
+        // Read frame header
+        int b1 = in.read();
+        if (b1 == -1) return null;
+        
+        boolean fin = (b1 & 0x80) != 0;
+        boolean compressed = (b1 & 0x40) != 0;
+        int opcode = b1 & 0x0F;
+        
+        // A close frame carries nothing we need
+        if (opcode == 8) return new Frame(fin, false, opcode, new byte[0]);
+        
+        int b2 = in.read();
+        if (b2 == -1) return null;
+        
+        boolean masked = (b2 & 0x80) != 0;
+        long payloadLength = b2 & 0x7F;
+        
+        // Extended payload length
+        if (payloadLength == 126) {
+            payloadLength = (in.read() << 8) | in.read();
+        } else if (payloadLength == 127) {
+            payloadLength = 0;
+            for (int i = 0; i < 8; i++) {
+                payloadLength = (payloadLength << 8) | in.read();
             }
-            try {
-                socket.close();
-            } catch (IOException e) {
-                // Ignore
+        }
+        
+        // A 64-bit length may be negative or far beyond what the cast below can hold
+        if (payloadLength < 0 || payloadLength > MAX_MESSAGE_SIZE) {
+            throw new MessageTooBigException();
+        }
+        
+        // Read masking key
+        byte[] maskingKey = new byte[4];
+        if (masked && !readFully(in, maskingKey)) {
+            return null;
+        }
+        
+        // Read payload
+        byte[] payload = new byte[(int) payloadLength];
+        if (!readFully(in, payload)) {
+            return null;
+        }
+        
+        // Unmask payload
+        if (masked) {
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) (payload[i] ^ maskingKey[i % 4]);
             }
         }
+        
+        return new Frame(fin, compressed, opcode, payload);
     }
     
-    public static void broadcast(String id, String message) {
-        Set<Socket> sockets = connections.get(id);
-        if (sockets != null) {
-            String jsonMessage = "{\"type\":\"update\",\"text\":" + Utils.toJsonString(message) + "}";
-            for (Socket socket : sockets) {
-                try {
-                    sendWebSocketMessage(socket, jsonMessage);
-                } catch (IOException e) {
-                    // Remove dead connection
-                    sockets.remove(socket);
-                }
+    /**
+     * @return false if the stream ended first
+     */
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read == -1) {
+                return false;
             }
+            total += read;
         }
+        return true;
     }
     
-    private static void broadcastExcept(String id, String message, Socket except) {
-        Set<Socket> sockets = connections.get(id);
-        if (sockets != null) {
-            String jsonMessage = "{\"type\":\"update\",\"text\":" + Utils.toJsonString(message) + "}";
-            for (Socket socket : sockets) {
-                if (socket != except) {
-                    try {
-                        sendWebSocketMessage(socket, jsonMessage);
-                    } catch (IOException e) {
-                        // Remove dead connection
-                        sockets.remove(socket);
-                    }
-                }
+    /**
+     * Add a connection to the paste's room; the room sends it the current text
+     * under its lock, so it sees every later operation exactly once
+     * @return false if the room is full
+     */
+    private static boolean join(WebSocketConnection connection, String id) {
+        while (true) {
+            // The room reads the paste itself, outside the map's bin lock
+            Room room = rooms.computeIfAbsent(id, k -> new Room(k, MAX_ROOM_MEMBERS));
+            switch (room.join(connection)) {
+                case JOINED:
+                    return true;
+                case FULL:
+                    return false;
+                default:
+                    // The last editor left and is dropping this room: wait for a fresh one
+                    break;
             }
         }
     }
     
+    static WebSocketMessage snapshotMessage(String type, PasteDocument document) {
+        return jsonMessage(json -> json.beginObject()
+            .field("type", type)
+            .field("text", document.getText())
+            .field("seq", document.getSeq())
+            .endObject());
+    }
+    
+    static WebSocketMessage userCountMessage(int count) {
+        return jsonMessage(json -> json.beginObject()
+            .field("type", "userCount")
+            .field("count", count)
+            .endObject());
+    }
+    
     /**
-     * Broadcast user count to all connected clients for a paste
+     * Refuse a connection to a paste that has as many editors as it may have
      */
-    private static void broadcastUserCount(String id) {
-        Set<Socket> sockets = connections.get(id);
-        if (sockets != null) {
-            int count = sockets.size();
-            String countMessage = "{\"type\":\"userCount\",\"count\":" + count + "}";
-            for (Socket socket : sockets) {
-                try {
-                    sendWebSocketMessage(socket, countMessage);
-                } catch (IOException e) {
-                    // Remove dead connection
-                    sockets.remove(socket);
+    private static void sendTooManyEditors(WebSocketConnection connection, String id) throws IOException {
+        String body = "This paste has too many editors, try again later.";
+        String response = "HTTP/1.1 503 Service Unavailable\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: " + body.length() + "\r\n"
+            + "Retry-After: 30\r\n"
+            + "\r\n"
+            + body;
+        connection.sendRaw(response.getBytes(StandardCharsets.UTF_8));
+        connection.close();
+        ServerLogger.log(() -> "WebSocket connection refused, paste " + id + " is full");
+    }
+    
+    /**
+     * Close frame with a status code and a UTF-8 reason
+     */
+    static byte[] closeFrame(int code, String reason) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[2 + text.length];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, text.length);
+        return encodeFrame(8, payload);
+    }
+    
+    /**
+     * Apply an edit received from a client and send the resulting operation to every editor
+     */
+    static void onTextMessage(WebSocketConnection connection, String id, String message) {
+        // A member's room stays registered until the member leaves it
+        Room room = rooms.get(id);
+        if (room == null) {
+            return;
+        }
+        
+        Map<String, String> fields = message.startsWith("{") ? Utils.parseFlatJson(message) : null;
+        boolean isOp = fields != null && "op".equals(fields.get("type"));
+        
+        room.lock.lock();
+        try {
+            PasteDocument document = room.document();
+            if (document == null) {
+                return;
+            }
+            PasteDocument.Op op;
+            if (isOp) {
+                op = applyOp(document, fields);
+                if (op == null) {
+                    room.send(connection, snapshotMessage("resync", document));
+                    return;
+                }
+            } else {
+                // Full text from a client without delta support
+                if (message.length() > Storage.MAX_PASTE_SIZE) {
+                    return;
+                }
+                op = document.replace(message);
+                if (op == null) {
+                    return;
                 }
             }
+            
+            // Persist once this burst of edits settles
+            String editorIp = connection.getRemoteAddress();
+            Storage.deferUpdate(id, () -> persist(room, editorIp));
+            
+            broadcast(room, jsonMessage(op::writeJson));
+        } finally {
+            room.lock.unlock();
         }
     }
     
-    private static void sendWebSocketMessage(Socket socket, String message) throws IOException {
-        byte[] payload = message.getBytes("UTF-8");
-        OutputStream out = socket.getOutputStream();
+    /**
+     * Save a room's current text as a new version
+     */
+    private static void persist(Room room, String editorIp) {
+        room.lock.lock();
+        try {
+            Storage.updatePaste(room.id, room.document().getText(), editorIp);
+        } finally {
+            room.lock.unlock();
+        }
+    }
+    
+    private static PasteDocument.Op applyOp(PasteDocument document, Map<String, String> fields) {
+        try {
+            long base = Long.parseLong(fields.get("base"));
+            int pos = Integer.parseInt(fields.get("pos"));
+            int del = Integer.parseInt(fields.getOrDefault("del", "0"));
+            String ins = fields.getOrDefault("ins", "");
+            return document.apply(base, pos, del, ins, Storage.MAX_PASTE_SIZE);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Remove a closed connection and tell the remaining clients; the last one out drops the room
+     */
+    static void onClose(WebSocketConnection connection, String id) {
+        Room room = rooms.get(id);
+        if (room == null) {
+            return;
+        }
+        room.lock.lock();
+        try {
+            if (room.leave(connection)) {
+                // Save pending edits first: the next editor loads from storage
+                Storage.flushDeferred(id);
+                rooms.remove(id, room);
+            }
+        } finally {
+            room.lock.unlock();
+        }
+        // No longer a member, so nothing compresses for it any more
+        PerMessageDeflate deflate = connection.getDeflate();
+        if (deflate != null) {
+            deflate.release();
+        }
+        ServerLogger.log(() -> "WebSocket disconnected for paste: " + id);
+    }
+    
+    /**
+     * Save text sent over HTTP and push it to the live editors as a single operation
+     * Runs under the room lock so a deferred save of older text cannot land after it
+     * @return false if the paste does not exist or the text was rejected
+     */
+    public static boolean updatePaste(String id, String text, String updaterIp) {
+        Room room = rooms.get(id);
+        if (room == null) {
+            return Storage.updatePaste(id, text, updaterIp);
+        }
+        
+        room.lock.lock();
+        try {
+            PasteDocument document = room.document();
+            if (document == null) {
+                return Storage.updatePaste(id, text, updaterIp);
+            }
+            if (!Storage.updatePaste(id, text, updaterIp)) {
+                return false;
+            }
+            Storage.cancelDeferred(id);
+            PasteDocument.Op op = document.replace(text);
+            if (op != null) {
+                broadcast(room, jsonMessage(op::writeJson));
+            }
+            return true;
+        } finally {
+            room.lock.unlock();
+        }
+    }
+    
+    /**
+     * Send one message to every member of a room; caller holds the room lock
+     */
+    private static void broadcast(Room room, WebSocketMessage message) {
+        long start = System.nanoTime();
+        fanOut.record(room.broadcast(message));
+        broadcastTime.recordSince(start);
+    }
+    
+    private static void collectConnections(Metrics.Sampler out) {
+        List<Map.Entry<String, Integer>> open = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            int size = room.size();
+            if (size > 0) {
+                open.add(new AbstractMap.SimpleEntry<>(room.id, size));
+            }
+        }
+        if (open.size() > MAX_REPORTED_PASTES) {
+            open.sort((a, b) -> b.getValue() - a.getValue());
+            open = open.subList(0, MAX_REPORTED_PASTES);
+        }
+        for (Map.Entry<String, Integer> entry : open) {
+            out.sample("paste=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+    }
+    
+    /**
+     * Reserve room for another message on a connection's outbound queue
+     * A message larger than the limit still goes out on its own when nothing is queued
+     * @return false if the connection has fallen too far behind and must be dropped
+     */
+    static boolean reserveQueued(AtomicLong queuedBytes, int length) {
+        long queued = queuedBytes.addAndGet(length);
+        if (queued > MAX_QUEUED_BYTES && queued != length) {
+            queuedBytes.addAndGet(-length);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Build a complete unmasked server frame (header + payload) in one array
+     */
+    static byte[] encodeFrame(int opcode, byte[] payload) {
+        return encodeFrame(opcode, ByteBuffer.wrap(payload));
+    }
+    
+    static byte[] encodeFrame(int opcode, ByteBuffer payload) {
+        return encodeFrame(opcode, false, payload);
+    }
+    
+    /**
+     * @param compressed sets RSV1, marking a message compressed with permessage-deflate
+     */
+    static byte[] encodeFrame(int opcode, boolean compressed, ByteBuffer payload) {
+        int length = payload.remaining();
+        int headerLength = length <= 125 ? 2 : (length <= 65535 ? 4 : 10);
+        byte[] frame = new byte[headerLength + length];
         
-        // Frame header: FIN + text opcode
-        out.write(0x81);
+        // Frame header: FIN + RSV1 + opcode
+        frame[0] = (byte) (0x80 | (compressed ? 0x40 : 0) | opcode);
         
         // Payload length
-        if (payload.length <= 125) {
-            out.write(payload.length);
-        } else if (payload.length <= 65535) {
-            out.write(126);
-            out.write((payload.length >> 8) & 0xFF);
-            out.write(payload.length & 0xFF);
+        if (length <= 125) {
+            frame[1] = (byte) length;
+        } else if (length <= 65535) {
+            frame[1] = 126;
+            frame[2] = (byte) ((length >> 8) & 0xFF);
+            frame[3] = (byte) (length & 0xFF);
         } else {
-            out.write(127);
-            for (int i = 7; i >= 0; i--) {
-                out.write((payload.length >> (i * 8)) & 0xFF);
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((((long) length) >> ((7 - i) * 8)) & 0xFF);
             }
         }
         
         // Payload
-        out.write(payload);
-        out.flush();
+        payload.duplicate().get(frame, headerLength, length);
+        return frame;
+    }
+    
+    static WebSocketMessage textMessage(String message) {
+        return WebSocketMessage.text(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    /**
+     * A JSON message body, written by jsonMessage
+     */
+    private interface JsonMessage {
+        void write(JsonWriter json) throws IOException;
+    }
+    
+    /**
+     * Text message holding one JSON value, encoded as UTF-8 straight into its frame
+     */
+    private static WebSocketMessage jsonMessage(JsonMessage message) {
+        try (JsonWriter json = JsonWriter.buffered()) {
+            message.write(json);
+            return WebSocketMessage.text(json.toByteBuffer());
+        } catch (IOException e) {
+            // A buffered writer does no I/O
+            throw new UncheckedIOException(e);
+        }
     }
     
     private static String generateAcceptKey(String key) throws Exception {
@@ -274,4 +648,107 @@ public class WebSocketServer {
         byte[] hash = md.digest((key + magic).getBytes("UTF-8"));
         return Base64.getEncoder().encodeToString(hash);
     }
+    
+    /**
+     * Blocking transport: one thread owns the read loop; writes are queued and
+     * drained by a writer task, so senders never block on this socket
+     */
+    static class SocketConnection implements WebSocketConnection {
+        private final Socket socket;
+        private final String remoteAddress;
+        private final Queue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean writing = new AtomicBoolean(false);
+        private volatile boolean closeAfterFlush = false;
+        private volatile PerMessageDeflate deflate;
+        
+        SocketConnection(Socket socket) {
+            this.socket = socket;
+            this.remoteAddress = socket.getInetAddress().getHostAddress();
+        }
+        
+        @Override
+        public void sendRaw(byte[] data) throws IOException {
+            if (socket.isClosed() || closeAfterFlush) {
+                throw new IOException("Connection closed");
+            }
+            if (!reserveQueued(queuedBytes, data.length)) {
+                ServerLogger.warn("WebSocket dropped as slow consumer: " + remoteAddress);
+                closeNow();
+                throw new IOException("Outbound queue full");
+            }
+            outbound.add(data);
+            scheduleDrain();
+        }
+        
+        @Override
+        public void sendText(String message) throws IOException {
+            sendRaw(textMessage(message).frameFor(this));
+        }
+        
+        @Override
+        public PerMessageDeflate getDeflate() {
+            return deflate;
+        }
+        
+        @Override
+        public void setDeflate(PerMessageDeflate deflate) {
+            this.deflate = deflate;
+        }
+        
+        private void scheduleDrain() {
+            if (writing.compareAndSet(false, true)) {
+                try {
+                    writers.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    closeNow();
+                }
+            }
+        }
+        
+        private void drain() {
+            try {
+                do {
+                    OutputStream out = socket.getOutputStream();
+                    byte[] data;
+                    while ((data = outbound.poll()) != null) {
+                        out.write(data);
+                        queuedBytes.addAndGet(-data.length);
+                    }
+                    if (closeAfterFlush) {
+                        closeNow();
+                        return;
+                    }
+                    writing.set(false);
+                } while ((!outbound.isEmpty() || closeAfterFlush) && writing.compareAndSet(false, true));
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+        
+        private void closeNow() {
+            outbound.clear();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return !socket.isClosed() && !closeAfterFlush;
+        }
+        
+        @Override
+        public void close() {
+            closeAfterFlush = true;
+            scheduleDrain();
+        }
+    }
 }
@@ -98,6 +98,10 @@ const userCountElement = document.getElementById('user-count');
 let isEditing = false;
 let originalContent = '';
 let ws = null;
+let docSeq = null;        // Server sequence number of originalContent
+let pendingText = null;   // Last text sent as an edit, until the server echoes it back
+let pendingOp = null;     // The del/ins of that edit, to recognize its echo
+let editRetried = false;  // pendingText was already resent once after a resync
 let reconnectAttempts = 0;
 const MAX_RECONNECT_ATTEMPTS = 5;
 
@@ -183,16 +187,32 @@ function connectWebSocket() {
             try {
                 const message = JSON.parse(event.data);
                 
-                if (message.type === 'init' || message.type === 'update') {
-                    const content = message.text;
+                if (message.type === 'init' || message.type === 'resync' || message.type === 'update') {
+                    // Full snapshot: only sent on connect or when an edit could not be merged
+                    setContent(message.text);
+                    docSeq = typeof message.seq === 'number' ? message.seq : null;
                     
-                    // Update display if not currently editing
-                    if (!isEditing) {
-                        originalContent = content;
-                        displayContent(content);
-                    } else {
-                        // Update original content but don't override editor
-                        originalContent = content;
+                    if (message.type === 'resync' && pendingText !== null) {
+                        const retry = pendingText;
+                        pendingText = null;
+                        pendingOp = null;
+                        // Resend once; an edit the server refuses again gives way to its snapshot
+                        if (!editRetried) {
+                            sendEdit(retry, true);
+                        } else {
+                            console.warn('Edit refused by the server, keeping its version');
+                        }
+                    }
+                } else if (message.type === 'op') {
+                    // Delta from any editor (including our own edits once applied)
+                    setContent(applyOp(originalContent, message));
+                    docSeq = message.seq;
+                    
+                    // Our own edit came back, possibly shifted by others made before it
+                    if (pendingText !== null && (originalContent === pendingText ||
+                            (message.ins === pendingOp.ins && message.del === pendingOp.del))) {
+                        pendingText = null;
+                        pendingOp = null;
                     }
                 } else if (message.type === 'userCount') {
                     // Update online users count
@@ -244,6 +264,52 @@ function connectWebSocket() {
     }
 }
 
+// Update original content; don't override the editor while editing
+function setContent(content) {
+    originalContent = content;
+    if (!isEditing) {
+        displayContent(content);
+    }
+}
+
+// Apply a splice operation: delete op.del characters at op.pos, then insert op.ins
+function applyOp(text, op) {
+    return text.slice(0, op.pos) + op.ins + text.slice(op.pos + op.del);
+}
+
+// Send the difference between the last server version and newText as one splice
+function sendEdit(newText, isRetry = false) {
+    const oldText = originalContent;
+    const max = Math.min(oldText.length, newText.length);
+    let prefix = 0;
+    while (prefix < max && oldText[prefix] === newText[prefix]) {
+        prefix++;
+    }
+    let suffix = 0;
+    while (suffix < max - prefix &&
+           oldText[oldText.length - 1 - suffix] === newText[newText.length - 1 - suffix]) {
+        suffix++;
+    }
+    // Keep surrogate pairs whole
+    if (prefix > 0 && /[\uD800-\uDBFF]/.test(newText[prefix - 1])) {
+        prefix--;
+    }
+    if (suffix > 0 && /[\uDC00-\uDFFF]/.test(newText[newText.length - suffix])) {
+        suffix--;
+    }
+    
+    const del = oldText.length - prefix - suffix;
+    const ins = newText.substring(prefix, newText.length - suffix);
+    if (del === 0 && ins === '') {
+        return;
+    }
+    
+    pendingText = newText;
+    pendingOp = { del: del, ins: ins };
+    editRetried = isRetry;
+    ws.send(JSON.stringify({ type: 'op', base: docSeq, pos: prefix, del: del, ins: ins }));
+}
+
 // Edit button click
 editButton.addEventListener('click', () => {
     enterEditMode();
@@ -300,6 +366,13 @@ async function saveChanges() {
         return;
     }
     
+    // Live connection: send only the change, the server echoes it back as an op
+    if (ws && ws.readyState === WebSocket.OPEN && docSeq !== null) {
+        sendEdit(content);
+        exitEditMode();
+        return;
+    }
+    
     saveButton.disabled = true;
     saveButton.textContent = 'Saving...';
     
@@ -323,11 +396,6 @@ async function saveChanges() {
         
         originalContent = content;
         
-        // Send update via WebSocket if connected
-        if (ws && ws.readyState === WebSocket.OPEN) {
-            ws.send(content);
-        }
-        
         exitEditMode();
     } catch (error) {
         console.error('Error saving paste:', error);
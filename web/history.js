@@ -2,7 +2,11 @@
 (() => {
   const base = window.location.origin;
   const api = base + '/api/history';
+  const pageSize = 100;
   const tableBody = document.querySelector('#history-body');
+  const loadMoreButton = document.querySelector('#history-more');
+  // after= value for the next page, or null once the last page is shown
+  let nextCursor = null;
   
   const loadingRow = () => {
     tableBody.innerHTML = '<tr><td colspan="7" style="text-align:center;padding:30px">Loading...</td></tr>';
@@ -13,11 +17,15 @@
     console.error('history error', msg);
   };
   
-  async function loadHistory() {
+  async function loadHistory(after) {
     try {
-      loadingRow();
-      console.log('fetching', api);
-      const res = await fetch(api);
+      if (!after) {
+        loadingRow();
+      }
+      loadMoreButton.hidden = true;
+      const url = api + '?limit=' + pageSize + (after ? '&after=' + encodeURIComponent(after) : '');
+      console.log('fetching', url);
+      const res = await fetch(url);
       console.log('response status', res.status);
       
       if (!res.ok) {
@@ -35,12 +43,17 @@
         return;
       }
       
-      if (data.length === 0) {
+      nextCursor = res.headers.get('X-Next-Cursor');
+      loadMoreButton.hidden = !nextCursor;
+      
+      if (data.length === 0 && !after) {
         tableBody.innerHTML = '<tr><td colspan="7" style="text-align:center;padding:30px">No history entries found</td></tr>';
         return;
       }
       
-      tableBody.innerHTML = '';
+      if (!after) {
+        tableBody.innerHTML = '';
+      }
       data.forEach(item => {
         const row = document.createElement('tr');
         if (item.deleted) {
@@ -121,11 +134,18 @@
   
   // Load history on page load
   if (document.readyState === 'loading') {
-    document.addEventListener('DOMContentLoaded', loadHistory);
+    document.addEventListener('DOMContentLoaded', () => loadHistory());
   } else {
     loadHistory();
   }
   
+  // Append the next page
+  loadMoreButton.addEventListener('click', () => {
+    if (nextCursor) {
+      loadHistory(nextCursor);
+    }
+  });
+  
   // Handle delete button clicks
   document.body.addEventListener('click', e => {
     const t = e.target;